@@ -0,0 +1,95 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.hl7.fhir.ElementDefinition;
+import org.hl7.fhir.StructureDefinition;
+import org.hl7.fhir.StructureDefinitionSnapshot;
+import org.hl7.fhir.emf.FHIRSerDeser;
+import org.hl7.fhir.emf.Finals;
+import org.kohsuke.args4j.CmdLineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-profile phases against the bundled profiles: load, populate, apply a
+ * single snapshot element, and serialize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProfileBenchmark {
+
+	@Param({"StructureDefinition-qicore-adverseevent.xml", "StructureDefinition-de-identified-uds-plus-patient.xml"})
+	public String profileName;
+
+	AHRQProfiler profiler;
+	EPackage spec;
+	StructureDefinitionSnapshot snapshot;
+	EPackage populated;
+	ElementDefinition element;
+	EStructuralFeature feature;
+
+	@Setup(Level.Trial)
+	public void setUp() throws CmdLineException {
+		profiler = new AHRQProfiler(new String[] {"-p", profileName, "-i", "fhir.ecore", "--no-spec-cache"});
+		spec = profiler.loadSpec();
+		StructureDefinition profile = profiler.loadProfile();
+		snapshot = profile.getSnapshot();
+		populated = populateEcoreOut();
+
+		// The first element that resolves to a feature stands in for a typical one
+		PathIndex index = profiler.pathIndex(spec);
+		for (ElementDefinition elem : snapshot.getElement()) {
+			PathIndex.Entry entry = index.get(elem.getPath().getValue());
+			if (entry != null && entry.feature() != null) {
+				element = elem;
+				feature = entry.feature();
+				break;
+			}
+		}
+	}
+
+	@Benchmark
+	public StructureDefinition loadProfile() {
+		return profiler.loadProfile();
+	}
+
+	@Benchmark
+	public EPackage populateEcoreOut() {
+		EPackage out = profiler.createOutputPackage(spec);
+		profiler.populateEcoreOut(snapshot, spec, out);
+		return out;
+	}
+
+	@Benchmark
+	public EStructuralFeature applySnapshotElementToFeature() {
+		EStructuralFeature copy = EcoreUtil.copy(feature);
+		profiler.applySnapshotElementToFeature(element, copy);
+		return copy;
+	}
+
+	@Benchmark
+	public OutputStream save() {
+		return FHIRSerDeser.save(populated, Finals.SDS_FORMAT.ECORE);
+	}
+
+	@Benchmark
+	public OutputStream write() throws IOException {
+		OutputStream out = OutputStream.nullOutputStream();
+		EcoreWriter.write(populated, out);
+		return out;
+	}
+}
@@ -0,0 +1,79 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.kohsuke.args4j.CmdLineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Spec-level phases, independent of any profile: parsing fhir.ecore, reading
+ * it from the binary spec cache, and creating the output package.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SpecBenchmark {
+
+	AHRQProfiler parsing;
+	AHRQProfiler caching;
+	EPackage spec;
+	Path cacheDir;
+
+	@Setup(Level.Trial)
+	public void setUp() throws CmdLineException, IOException {
+		parsing = new AHRQProfiler(new String[] {"-i", "fhir.ecore", "--no-spec-cache"});
+		cacheDir = Files.createTempDirectory("spec-cache");
+		caching = new AHRQProfiler(new String[] {"-i", "fhir.ecore", "--spec-cache", cacheDir.toString()});
+		spec = caching.loadSpec();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		try (Stream<Path> entries = Files.list(cacheDir)) {
+			for (Path entry : entries.toList()) {
+				Files.delete(entry);
+			}
+		}
+		Files.delete(cacheDir);
+	}
+
+	@Benchmark
+	public EPackage loadSpec() {
+		return parsing.loadSpec();
+	}
+
+	@Benchmark
+	public EPackage loadSpecCached() {
+		return caching.loadSpec();
+	}
+
+	@Benchmark
+	public EPackage copySpec() {
+		EPackage out = parsing.copySpec(spec);
+		parsing.clearClassifiers(out);
+		return out;
+	}
+
+	@Benchmark
+	public EPackage createOutputPackage() {
+		return parsing.createOutputPackage(spec);
+	}
+
+	@Benchmark
+	public PathIndex pathIndex() {
+		return new PathIndex(spec);
+	}
+}
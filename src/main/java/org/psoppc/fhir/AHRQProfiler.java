@@ -1,11 +1,27 @@
 package org.psoppc.fhir;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import org.eclipse.emf.ecore.EAnnotation;
 import org.eclipse.emf.ecore.EClass;
@@ -13,11 +29,15 @@ import org.eclipse.emf.ecore.EClassifier;
 import org.eclipse.emf.ecore.EPackage;
 import org.eclipse.emf.ecore.EStructuralFeature;
 import org.eclipse.emf.ecore.EcoreFactory;
+import org.eclipse.emf.ecore.EcorePackage;
 import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.hl7.fhir.Canonical;
 import org.hl7.fhir.ElementDefinition;
 import org.hl7.fhir.ElementDefinitionBinding;
 import org.hl7.fhir.ElementDefinitionDiscriminator;
 import org.hl7.fhir.ElementDefinitionSlicing;
+import org.hl7.fhir.ElementDefinitionType;
+import org.hl7.fhir.FhirPackage;
 import org.hl7.fhir.StructureDefinition;
 import org.hl7.fhir.StructureDefinitionSnapshot;
 import org.hl7.fhir.UnsignedInt;
@@ -39,15 +59,98 @@ public class AHRQProfiler implements Runnable {
 
     private CmdLineParser CLI;
 
-    @Option(name = "-p", aliases = "--profile", required = false, usage = "Path to the profile")
-    private String profile;
+	private PathIndex pathIndex;
 
-    @Option(name = "-i", aliases = "--input", required = false, usage = "Path to fhir.ecore")
+	private RunReport report = RunReport.NONE;
+
+	private final Diagnostics diagnostics = new Diagnostics();
+
+	private final JsonProfileReader jsonReader = new JsonProfileReader();
+
+	private final XmlProfileReader xmlReader = new XmlProfileReader();
+
+	private List<NpmPackage> npmPackages;
+
+	private ProfileRegistry registry;
+
+	private SnapshotGenerator snapshotGenerator;
+
+	/** Canonical URL to constrained type of every profile loaded so far. */
+	private final Map<String, String> profileTypes = new ConcurrentHashMap<>();
+
+	/** Where a profile from outside the --packages came from: its name and content hash. */
+	record Source(String name, String hash) {}
+
+	/**
+	 * Canonical URL, bare and with its version, to the profile outside the
+	 * --packages that declares it.  Filled before any profile is transformed
+	 * and never evicted, so the registry can always parse such a base again.
+	 */
+	private final Map<String, Source> sources = new ConcurrentHashMap<>();
+
+	/** Profile name to the canonical it declares, for the profiles in {@link #sources}. */
+	private final Map<String, String> catalogued = new ConcurrentHashMap<>();
+
+    @Option(name = "-p", aliases = "--profile", required = false, usage = "Profile file, URI or classpath resource, or a directory of profiles; may be repeated")
+    private List<String> profile = new ArrayList<>();
+
+    @Option(name = "--package", required = false, usage = "FHIR NPM package (.tgz) whose StructureDefinitions -p may name by canonical URL, id or file name; may be repeated")
+    private List<String> packages = new ArrayList<>();
+
+    @Option(name = "--registry-size", required = false, usage = "Parsed profiles kept for baseDefinition lookups (default 64)")
+    private int registrySize = ProfileRegistry.DEFAULT_CAPACITY;
+
+    @Option(name = "--profile-list", required = false, usage = "File naming one profile per line; merged with any -p")
+    private String profileList;
+
+    @Option(name = "-i", aliases = "--input", required = false, usage = "fhir.ecore as a file, URI or classpath resource")
     private String input;
 
     @Option(name = "-o", aliases = "--output", required = false, usage = "Path to out.ecore.")
     private String output;
 
+    @Option(name = "--gzip", required = false, usage = "Gzip the output ecore")
+    private boolean gzip;
+
+    @Option(name = "--canonical", required = false, usage = "Sort and normalize the output so equal input saves to equal bytes, and record its SHA-256")
+    private boolean canonical;
+
+    @Option(name = "-t", aliases = "--threads", required = false, usage = "Profiles loaded and transformed in parallel; 0 uses every core (default 1)")
+    private int threads = 1;
+
+    @Option(name = "--full-parse", required = false, usage = "Build the complete object graph of XML profiles with FHIRSerDeser instead of reading only what the profiler uses")
+    private boolean fullParse;
+
+    @Option(name = "--differential", required = false, usage = "Copy the base type and apply only the differential; falls back to the snapshot")
+    private boolean differential;
+
+    @Option(name = "--substitutions", required = false, usage = "File of 'target replacement' lines retargeting Reference features to other profiles")
+    private String substitutions;
+
+    @Option(name = "--self-contained", required = false, usage = "Copy every spec classifier the output reaches into it, so it no longer refers to fhir.ecore")
+    private boolean selfContained;
+
+    @Option(name = "--build-cache", required = false, usage = "Directory for the incremental build manifest; unchanged profiles reuse their last fragment")
+    private String buildCache;
+
+    @Option(name = "--report", required = false, usage = "Write per-phase timing and memory to <output>.report.json")
+    private boolean reportEnabled;
+
+    @Option(name = "--diagnostics", required = false, usage = "Also write the issue summary, by category and path, to this JSON file")
+    private String diagnosticsFile;
+
+    @Option(name = "--serve", required = false, usage = "Keep the spec warm and answer profile jobs on stdin/stdout")
+    private boolean serve;
+
+    @Option(name = "--port", required = false, usage = "Keep the spec warm and answer profile jobs on this loopback port")
+    private int port;
+
+    @Option(name = "--spec-cache", required = false, usage = "Directory for the binary spec cache (default ~/.psoppc/spec-cache)")
+    private String specCache;
+
+    @Option(name = "--no-spec-cache", required = false, usage = "Always parse fhir.ecore; neither read nor write the spec cache")
+    private boolean noSpecCache;
+
 	@Option(name = "-h", aliases = {"--help"}, help = true, usage = "Display help")
 	private boolean help;
 
@@ -61,20 +164,309 @@ public class AHRQProfiler implements Runnable {
     }
 
 
+	/**
+	 * Loads the spec once and merges every requested profile into a single
+	 * output package.  Where profiles constrain the same path the first one
+	 * listed wins.
+	 */
 	public void run() {
-		StructureDefinition profile = loadProfile();
-		EPackage spec = loadSpec();
-		EPackage out = copySpec(spec);
-		clearClassifiers(out);
-		StructureDefinitionSnapshot snap = profile.getSnapshot();
-		populateEcoreOut(snap, spec, out);
-		OutputStream writer = FHIRSerDeser.save(out, Finals.SDS_FORMAT.ECORE);
+		if (reportEnabled) {
+			report = RunReport.create();
+		}
+		EPackage spec = report.time("loadSpec", () -> loadSpec());
+		report.sampleHeap("loadSpec");
+		EPackage out = report.time("profileAll", () -> profileAll(spec));
+		report.sampleHeap("profileAll");
+		report.time("write", () -> write(out));
+		report.sampleHeap("write");
+		if (registry != null) {
+			log.debug("Profile registry: {} hit(s), {} miss(es), {} eviction(s)", registry.hits(), registry.misses(), registry.evictions());
+		}
+		diagnostics.logSummary();
+		if (diagnosticsFile != null) {
+			try {
+				diagnostics.write(Paths.get(diagnosticsFile));
+			} catch (IOException e) {
+				log.error("Could not write {}", diagnosticsFile, e);
+			}
+		}
+		if (report.isEnabled()) {
+			Path reportFile = Paths.get(output + ".report.json");
+			try {
+				report.write(reportFile);
+			} catch (IOException e) {
+				log.error("Could not write {}", reportFile, e);
+			}
+		}
+	}
+
+	/** Writes {@code out} to a caller-owned stream with the --gzip and --canonical settings of a file. */
+	void write(EPackage out, OutputStream stream) throws IOException {
+		EcoreWriter.write(out, stream, gzip, canonical);
+	}
+
+	/**
+	 * Forgets every profile read so far, with the bases expanded from them,
+	 * so the next run reads them afresh.  The spec, its path index and the
+	 * --packages are kept.
+	 */
+	synchronized void forgetProfiles() {
+		registry = null;
+		snapshotGenerator = null;
+		profileTypes.clear();
+		sources.clear();
+		catalogued.clear();
+	}
+
+	/** Writes {@code out} to the -o file, logging rather than throwing on failure. */
+	private void write(EPackage out) {
 		try {
-			FileWriter fileOut = new FileWriter(new File(output));
-			fileOut.write(writer.toString());
-			fileOut.close();
+			EcoreWriter.write(out, Paths.get(output), gzip, canonical);
+			if (canonical) {
+				log.info("Wrote {} with content hash {}", output, CanonicalEcore.hash(out));
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error("Could not write {}", output, e);
+		}
+	}
+
+	EPackage profileAll(EPackage spec) {
+		return profileAll(spec, profileNames());
+	}
+
+	EPackage profileAll(EPackage spec, List<String> names) {
+		catalog(names);
+		EPackage out = buildCache != null ? profileIncremental(spec, names) : profileMerged(spec, names);
+		if (substitutions != null) {
+			report.time("substituteReferences", () -> {
+				referenceSubstitution().apply(out, spec);
+			});
+		}
+		if (selfContained) {
+			report.time("closure", () -> {
+				int copied = new ClassifierClosure(spec).copyInto(out);
+				log.debug("Copied {} reachable classifier(s) from the spec", copied);
+			});
+		}
+		return out;
+	}
+
+	/**
+	 * Reads every named profile outside the --packages once, recording its
+	 * canonical in {@link #sources}, so that a baseDefinition resolves to the
+	 * same profile whatever the -p order, thread timing or registry size.
+	 */
+	void catalog(List<String> names) {
+		report.time("catalog", () -> {
+			for (String name : names) {
+				if (!catalogued.containsKey(name) && findInPackages(name) == null) {
+					parseProfile(name);
+				}
+			}
+		});
+	}
+
+	private EPackage profileMerged(EPackage spec, List<String> names) {
+		EPackage out = createOutputPackage(spec);
+		int parallelism = parallelism();
+		if (parallelism <= 1 || names.size() <= 1) {
+			for (String name : names) {
+				populate(loadProfile(name), spec, out);
+			}
+		} else {
+			populateParallel(names, spec, out, parallelism);
+		}
+		return out;
+	}
+
+	/**
+	 * As {@link #profileAll(EPackage, List)}, but a profile whose content, spec
+	 * and configuration match the build manifest is not transformed again:
+	 * its fragment from the last build is merged instead.
+	 */
+	EPackage profileIncremental(EPackage spec, List<String> names) {
+		BuildManifest manifest;
+		try {
+			manifest = new BuildManifest(Paths.get(buildCache), SpecCache.hash(Inputs.read(input)), configuration());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		EPackage out = createOutputPackage(spec);
+		int parallelism = parallelism();
+		if (parallelism <= 1 || names.size() <= 1) {
+			for (String name : names) {
+				EPackage fragment = fragment(manifest, name, spec);
+				report.time("mergeFragment", () -> mergeFragment(fragment, out));
+			}
+		} else {
+			populateParallel(names, spec, out, parallelism, name -> fragment(manifest, name, spec));
+		}
+		try {
+			manifest.save(names);
+		} catch (IOException e) {
+			log.warn("Could not write build manifest in {}", buildCache, e);
+		}
+		return out;
+	}
+
+	private EPackage fragment(BuildManifest manifest, String name, EPackage spec) {
+		try {
+			StructureDefinition profile = loadProfile(name);
+			String hash = fragmentHash(name, profile);
+			EPackage fragment = manifest.fragment(name, hash, spec);
+			if (fragment != null) {
+				log.debug("Reusing fragment for unchanged {}", name);
+				return fragment;
+			}
+			fragment = createOutputPackage(spec);
+			populate(profile, spec, fragment);
+			manifest.put(name, hash, fragment, spec);
+			return fragment;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * The build-manifest key of a profile: a hash of its content and of the
+	 * content of every base it resolves to, since a differential is merged
+	 * with its bases' elements.
+	 */
+	String fragmentHash(String name, StructureDefinition profile) throws IOException {
+		StringJoiner key = new StringJoiner(" ");
+		key.add(SpecCache.hash(profileContent(name)));
+		if (profile != null) {
+			for (StructureDefinition base : registry().bases(profile)) {
+				key.add(contentHash(base));
+			}
+		}
+		return SpecCache.hash(key.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** The content hash of a resolved base, from the file it was loaded from or its --package entry. */
+	private String contentHash(StructureDefinition profile) throws IOException {
+		String canonical = canonical(profile);
+		Source source = sources.get(canonical);
+		String hash = source == null ? null : source.hash();
+		if (hash == null) {
+			Map.Entry<NpmPackage, NpmPackage.Entry> packaged = findInPackages(canonical);
+			hash = packaged == null ? canonical : SpecCache.hash(packaged.getKey().content(packaged.getValue()));
+		}
+		return hash;
+	}
+
+	private static String canonical(StructureDefinition profile) {
+		String url = profile.getUrl() == null ? null : profile.getUrl().getValue();
+		String version = profile.getVersion() == null ? null : profile.getVersion().getValue();
+		return version == null ? url : url + "|" + version;
+	}
+
+	/**
+	 * Identifies the code and inputs that shape every fragment: a hash of the
+	 * profiler's code, the transformation mode and the hash of each --package.
+	 */
+	String configuration() {
+		StringJoiner configuration = new StringJoiner(" ");
+		configuration.add(BuildManifest.codeHash());
+		configuration.add(differential ? "differential" : "snapshot");
+		for (NpmPackage npmPackage : npmPackages()) {
+			configuration.add(npmPackage.hash());
+		}
+		return configuration.toString();
+	}
+
+	ReferenceSubstitution referenceSubstitution() {
+		try {
+			return new ReferenceSubstitution(ReferenceSubstitution.readTable(Paths.get(substitutions)), this::typeOfProfile, this::loadProfile);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	int parallelism() {
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Loads and transforms each profile into its own fragment package on a
+	 * fork-join pool, then merges the fragments into {@code out} in input
+	 * order so the result matches a sequential run.  The spec is only read by
+	 * the workers.
+	 */
+	void populateParallel(List<String> names, EPackage spec, EPackage out, int parallelism) {
+		populateParallel(names, spec, out, parallelism, name -> {
+			EPackage fragment = createOutputPackage(spec);
+			populate(loadProfile(name), spec, fragment);
+			return fragment;
+		});
+	}
+
+	void populateParallel(List<String> names, EPackage spec, EPackage out, int parallelism, Function<String, EPackage> build) {
+		warmUp(spec);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<ForkJoinTask<EPackage>> tasks = new ArrayList<>();
+			for (String name : names) {
+				tasks.add(pool.submit(() -> build.apply(name)));
+			}
+			for (ForkJoinTask<EPackage> task : tasks) {
+				EPackage fragment = task.join();
+				report.time("mergeFragment", () -> mergeFragment(fragment, out));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * EMF computes derived lists such as eAllStructuralFeatures lazily and
+	 * without synchronization, so populate them (and the path index) on the
+	 * calling thread before the spec is shared with workers.  That covers the
+	 * spec's classes, which the workers resolve paths against, the FHIR model
+	 * the profile readers instantiate, and Ecore itself.
+	 */
+	void warmUp(EPackage spec) {
+		pathIndex(spec);
+		for (EPackage pkg : List.of(spec, FhirPackage.eINSTANCE, EcorePackage.eINSTANCE)) {
+			for (EClassifier classifier : pkg.getEClassifiers()) {
+				if (classifier instanceof EClass eClass) {
+					eClass.getEAllStructuralFeatures();
+					eClass.getEAllSuperTypes();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the features of {@code fragment} into {@code out}.  A feature the
+	 * output already has is left behind, so earlier fragments win, and types
+	 * that point into the fragment are re-pointed at the output's class.
+	 */
+	void mergeFragment(EPackage fragment, EPackage out) {
+		for (EClassifier classifier : new ArrayList<>(fragment.getEClassifiers())) {
+			EClass outClassifier = outClass(out, classifier.getName());
+			for (EStructuralFeature feature : new ArrayList<>(((EClass) classifier).getEStructuralFeatures())) {
+				if (outClassifier.getEStructuralFeature(feature.getName()) != null) {
+					continue;
+				}
+				if (feature.getEType() instanceof EClass type && type.getEPackage() == fragment) {
+					feature.setEType(outClass(out, type.getName()));
+				}
+				outClassifier.getEStructuralFeatures().add(feature);
+			}
+		}
+	}
+
+	/**
+	 * Loads the spec once and answers transformation jobs until the input
+	 * ends, on stdin/stdout for --serve or on a loopback socket for --port.
+	 */
+	void serve() throws IOException {
+		ProfilerServer server = new ProfilerServer(this, loadSpec());
+		if (port > 0) {
+			server.listen(port, parallelism());
+		} else {
+			server.serve(System.in, System.out);
 		}
 	}
 
@@ -87,48 +479,337 @@ public class AHRQProfiler implements Runnable {
         CLI.printUsage(System.out);
     }
 
-    public void populateEcoreOut(StructureDefinitionSnapshot snap, EPackage spec, EPackage out) {
-        for (ElementDefinition elem : snap.getElement()) {
-            String path = elem.getPath().getValue(); // e.g., "AdverseEvent.actuality"
+	/**
+	 * Transforms one profile into {@code out}: from its differential when
+	 * --differential is set, otherwise from its snapshot.  A profile without
+	 * a snapshot gets one from the {@link SnapshotGenerator}, or failing that
+	 * is transformed from its differential.  A profile with neither is
+	 * recorded in the diagnostics and contributes nothing.
+	 */
+	void populate(StructureDefinition profile, EPackage spec, EPackage out) {
+		boolean hasDifferential = profile.getDifferential() != null && !profile.getDifferential().getElement().isEmpty();
+		boolean hasSnapshot = profile.getSnapshot() != null && !profile.getSnapshot().getElement().isEmpty();
+		if (hasDifferential && differential && populateFromDifferential(profile, spec, out)) {
+			return;
+		}
+		StructureDefinitionSnapshot snapshot = profile.getSnapshot();
+		if (!hasSnapshot && hasDifferential) {
+			snapshot = report.time("generateSnapshot", () -> snapshotGenerator(spec).generate(profile));
+			if (snapshot == null) {
+				populateFromDifferential(profile, spec, out);
+				return;
+			}
+		} else if (!hasSnapshot) {
+			String url = profile.getUrl() == null ? null : profile.getUrl().getValue();
+			diagnostics.report(Diagnostics.Category.NO_ELEMENTS, String.valueOf(url), "nothing to transform");
+			return;
+		}
+		populateEcoreOut(snapshot, spec, out);
+	}
 
-            String[] parts = path.split("\\.");
-            if (parts.length < 2) continue; // Skip root or malformed entries
+	/**
+	 * Copies the profile's base type, and the backbone types it contains, from
+	 * the spec into {@code out}, then applies only the differential elements,
+	 * its own layered over those of the profiles it derives from (see
+	 * {@link #differentialChain}).
+	 * Unconstrained elements keep the spec's bounds and documentation, which
+	 * is what the snapshot would have repeated for them.  As in
+	 * {@link #populateEcoreOut}, a feature already in {@code out} before this
+	 * call is left alone and only the first element for a path is applied.
+	 *
+	 * @return false, having changed nothing, if the base type is not in the spec
+	 */
+	boolean populateFromDifferential(StructureDefinition profile, EPackage spec, EPackage out) {
+		PathIndex index = pathIndex(spec);
+		String typeName = profile.getType() == null ? null : profile.getType().getValue();
+		PathIndex.Entry base = typeName == null ? null : index.get(typeName);
+		if (base == null) {
+			log.debug("Base type {} not in spec; using the snapshot", typeName);
+			return false;
+		}
+		report.time("populateFromDifferential", () -> {
+			Set<EStructuralFeature> copied = new HashSet<>();
+			copyBase(base.owner(), index, out, copied, new HashSet<>());
+
+			List<ElementDefinition> elements = differentialChain(profile, typeName);
+			Set<String> applied = new HashSet<>();
+			SliceEngine slices = new SliceEngine(elements, diagnostics);
+			for (ElementDefinition elem : elements) {
+				String path = elem.getPath().getValue();
+
+				int classEnd = path.indexOf('.');
+				if (classEnd < 0) continue; // Skip root or malformed entries
+
+				ProfilerEvents.ElementEvent event = new ProfilerEvents.ElementEvent();
+				event.begin();
+
+				List<PathIndex.Entry> entries = resolve(elem, path, index);
+				if (entries.isEmpty()) {
+					reportUnresolved(event, path, classEnd, index);
+					continue;
+				}
 
-            String elemClassName = parts[0];
-            String elemFeatureName = parts[1];
+				// A slice constrains its slice, not the sliced base feature; the
+				// snapshot's unsliced element for the path comes first and wins
+				String classifier = entries.get(0).owner().getName();
+				if (isSlice(elem, entries)) {
+					PathIndex.Entry entry = entries.get(0);
+					boolean ours = copied.contains(outClass(out, classifier).getEStructuralFeature(entry.feature().getName()));
+					boolean materialized = ours && materializeSlice(elem, path, entry, index, out, slices);
+					commit(event, path, classifier, materialized ? "slice" : "repeated");
+					continue;
+				}
+				if (elem.getSliceName() != null || !applied.add(path)) {
+					log.debug("Skipping repeated path {}", path);
+					commit(event, path, classifier, "repeated");
+					continue;
+				}
+				boolean changed = false;
+				for (PathIndex.Entry entry : entries) {
+					EStructuralFeature feature = outClass(out, entry.owner().getName()).getEStructuralFeature(entry.feature().getName());
+					if (copied.contains(feature)) {
+						applyElement(elem, feature, entries.size());
+						changed = true;
+					}
+				}
+				commit(event, path, classifier, changed ? "applied" : "repeated");
+			}
+		});
+		return true;
+	}
 
-            // Find the source EClass in the spec package
+	/**
+	 * The differential of {@code profile} layered over those of the bases
+	 * the registry resolves.  The chain is applied from the root base down,
+	 * each element overriding only the properties it sets on the element
+	 * with the same id, so a profile that changes just the short of a path
+	 * keeps its base's bounds, types, binding and mustSupport there.  Bases
+	 * of another type are left out.
+	 */
+	List<ElementDefinition> differentialChain(StructureDefinition profile, String typeName) {
+		List<StructureDefinition> chain = new ArrayList<>();
+		for (StructureDefinition base : registry().bases(profile)) {
+			if (base.getDifferential() != null && base.getType() != null && typeName.equals(base.getType().getValue())) {
+				chain.add(0, base);
+			}
+		}
+		if (chain.isEmpty()) {
+			return profile.getDifferential().getElement();
+		}
+		chain.add(profile);
+		Map<String, ElementDefinition> layered = new LinkedHashMap<>();
+		for (StructureDefinition layer : chain) {
+			for (ElementDefinition elem : layer.getDifferential().getElement()) {
+				String key = SnapshotGenerator.key(elem);
+				ElementDefinition under = layered.get(key);
+				if (under == null) {
+					layered.put(key, EcoreUtil.copy(elem));
+				} else {
+					SnapshotGenerator.overlay(elem, under);
+				}
+			}
+		}
+		return new ArrayList<>(layered.values());
+	}
 
-            EClassifier elemClassifier = spec.getEClassifier(elemClassName);
-            if (!(isInSpec(elemClassName, spec))) {
-                log.error("⚠️ Could not find EClass " + elemClassName + " in spec.");
-                continue;
-            }
+	/**
+	 * Copies every feature of {@code type} that {@code out} lacks, descending
+	 * into backbone types once each.  The copies are added to {@code copied}.
+	 */
+	private void copyBase(EClass type, PathIndex index, EPackage out, Set<EStructuralFeature> copied, Set<EClass> visited) {
+		if (!visited.add(type)) {
+			return;
+		}
+		EClass outClassifier = outClass(out, type.getName());
+		for (EStructuralFeature feature : type.getEAllStructuralFeatures()) {
+			EClass backbone = index.backboneType(feature);
+			if (outClassifier.getEStructuralFeature(feature.getName()) == null) {
+				EStructuralFeature copiedFeature = copyFeature(type.getName() + "." + feature.getName(), feature);
+				if (backbone != null) {
+					copiedFeature.setEType(outClass(out, backbone.getName()));
+				}
+				outClassifier.getEStructuralFeatures().add(copiedFeature);
+				copied.add(copiedFeature);
+			}
+			if (backbone != null) {
+				copyBase(backbone, index, out, copied, visited);
+			}
+		}
+	}
 
-            // Copy or create the EClass in the output package
-            EClass outClassifier = (EClass) out.getEClassifier(elemClassName);
-            if (outClassifier == null) {
-                outClassifier = EcoreFactory.eINSTANCE.createEClass();
-                outClassifier.setName(elemClassName);
-                out.getEClassifiers().add(outClassifier);
+    public void populateEcoreOut(StructureDefinitionSnapshot snap, EPackage spec, EPackage out) {
+        report.time("populateEcoreOut", () -> {
+            PathIndex index = pathIndex(spec);
+            SliceEngine slices = new SliceEngine(snap.getElement(), diagnostics);
+            for (ElementDefinition elem : snap.getElement()) {
+                String path = elem.getPath().getValue(); // e.g., "AdverseEvent.suspectEntity.causality.assessment"
+
+                int classEnd = path.indexOf('.');
+                if (classEnd < 0) continue; // Skip root or malformed entries
+
+                ProfilerEvents.ElementEvent event = new ProfilerEvents.ElementEvent();
+                event.begin();
+
+                // Resolve the owning EClass (a backbone class for nested paths) and feature(s)
+                List<PathIndex.Entry> entries = resolve(elem, path, index);
+                if (entries.isEmpty()) {
+                    reportUnresolved(event, path, classEnd, index);
+                    continue;
+                }
+
+                if (isSlice(elem, entries)) {
+                    boolean materialized = materializeSlice(elem, path, entries.get(0), index, out, slices);
+                    commit(event, path, entries.get(0).owner().getName(), materialized ? "slice" : "repeated");
+                    continue;
+                }
+
+                boolean changed = false;
+                for (PathIndex.Entry entry : entries) {
+                    // Copy or create the EClass in the output package
+                    EClass outClassifier = outClass(out, entry.owner().getName());
+
+                    // A path is applied once; repeats (e.g. slices) must not re-copy the base feature
+                    if (outClassifier.getEStructuralFeature(entry.feature().getName()) != null) {
+                        continue;
+                    }
+
+                    // Copy the feature, pointing backbone references at the output's backbone class
+                    EStructuralFeature copiedFeature = copyFeature(path, entry.feature());
+                    EClass backbone = index.backboneType(entry.feature());
+                    if (backbone != null) {
+                        copiedFeature.setEType(outClass(out, backbone.getName()));
+                    }
+                    outClassifier.getEStructuralFeatures().add(copiedFeature);
+
+                    // Optional: apply snapshot constraints
+                    applyElement(elem, copiedFeature, entries.size());
+                    changed = true;
+                }
+                if (!changed) {
+                    log.debug("Skipping repeated path {}", path);
+                }
+                commit(event, path, entries.get(0).owner().getName(), changed ? "applied" : "repeated");
             }
+        });
+    }
 
-            // Find the feature in the spec EClass
-            EStructuralFeature elemFeature = elemClassifier.eClass().getEStructuralFeature(elemFeatureName);
-            if (elemFeature == null) {
-                log.error("⚠️ Could not find feature " + elemFeatureName + " in " + elemFeatureName);
-                continue;
-            }
+	/**
+	 * Resolves an element path to the feature it constrains or, for a choice
+	 * path such as "Patient.deceased[x]", to the typed variants the element
+	 * allows.  Returns an empty list if the path is not in the spec.
+	 */
+	List<PathIndex.Entry> resolve(ElementDefinition elem, String path, PathIndex index) {
+		PathIndex.Entry entry = index.get(path);
+		if (entry != null) {
+			return List.of(entry);
+		}
+		if (!path.endsWith(PathIndex.CHOICE_SUFFIX)) {
+			return List.of();
+		}
+		List<PathIndex.Entry> variants = index.choice(path);
+		if (elem.getType().isEmpty()) {
+			return variants;
+		}
+		String base = path.substring(path.lastIndexOf('.') + 1, path.length() - PathIndex.CHOICE_SUFFIX.length());
+		Set<String> allowed = new HashSet<>();
+		for (ElementDefinitionType type : elem.getType()) {
+			String code = type.getCode() == null ? null : type.getCode().getValue();
+			if (code != null && !code.isEmpty()) {
+				allowed.add(base + Character.toUpperCase(code.charAt(0)) + code.substring(1));
+			}
+		}
+		List<PathIndex.Entry> restricted = new ArrayList<>();
+		for (PathIndex.Entry variant : variants) {
+			if (allowed.contains(variant.feature().getName())) {
+				restricted.add(variant);
+			}
+		}
+		return restricted;
+	}
 
-            // Copy the feature
-            EStructuralFeature copiedFeature = copyFeature(elemFeature);
-            outClassifier.getEStructuralFeatures().add(copiedFeature);
+	/**
+	 * A named slice of a single feature.  Slices of a choice (value[x]:valueQuantity)
+	 * only pick one of its typed variants, so they are not materialized.
+	 */
+	private static boolean isSlice(ElementDefinition elem, List<PathIndex.Entry> entries) {
+		return elem.getSliceName() != null && elem.getSliceName().getValue() != null
+			&& entries.size() == 1 && !elem.getPath().getValue().endsWith(PathIndex.CHOICE_SUFFIX);
+	}
 
-            // Optional: apply snapshot constraints
-            applySnapshotElementToFeature(elem, copiedFeature);
-			applySlice(elem, copiedFeature);
-        }
-    }
+	/**
+	 * Adds a feature for the slice {@code elem} to the sliced feature's class:
+	 * a copy of the spec feature named by {@link SliceEngine#featureName},
+	 * constrained by the slice and annotated with its discriminator values.
+	 *
+	 * @return false if the output already has the slice
+	 */
+	boolean materializeSlice(ElementDefinition elem, String path, PathIndex.Entry entry, PathIndex index, EPackage out, SliceEngine slices) {
+		EClass outClassifier = outClass(out, entry.owner().getName());
+		String name = SliceEngine.featureName(entry.feature().getName(), elem.getSliceName().getValue());
+		if (outClassifier.getEStructuralFeature(name) != null) {
+			return false;
+		}
+		EStructuralFeature sliceFeature = copyFeature(path, entry.feature());
+		sliceFeature.setName(name);
+		EClass backbone = index.backboneType(entry.feature());
+		if (backbone != null) {
+			sliceFeature.setEType(outClass(out, backbone.getName()));
+		}
+		outClassifier.getEStructuralFeatures().add(sliceFeature);
+		applyElement(elem, sliceFeature, 1);
+		slices.annotate(elem, sliceFeature, entry.feature().getName());
+		return true;
+	}
+
+	/**
+	 * Applies {@code elem} to one output feature.  When a choice resolved to
+	 * several variants, the element's minimum belongs to the choice as a
+	 * whole, so each variant stays optional.
+	 */
+	private void applyElement(ElementDefinition elem, EStructuralFeature feature, int variants) {
+		report.time("applyElement", () -> {
+			applySnapshotElementToFeature(elem, feature);
+			if (variants > 1) {
+				feature.setLowerBound(0);
+			}
+		});
+	}
+
+	private void reportUnresolved(ProfilerEvents.ElementEvent event, String path, int classEnd, PathIndex index) {
+		String elemClassName = path.substring(0, classEnd);
+		if (index.get(elemClassName) == null) {
+			diagnostics.report(Diagnostics.Category.CLASS_NOT_FOUND, path, elemClassName);
+			commit(event, path, elemClassName, "classNotFound");
+		} else {
+			diagnostics.report(Diagnostics.Category.FEATURE_NOT_FOUND, path, elemClassName);
+			commit(event, path, elemClassName, "featureNotFound");
+		}
+	}
+
+	private static void commit(ProfilerEvents.ElementEvent event, String path, String classifier, String outcome) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = path;
+			event.classifier = classifier;
+			event.outcome = outcome;
+			event.commit();
+		}
+	}
+
+	Diagnostics diagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * Returns the path index for {@code spec}, building it only when the spec
+	 * differs from the one last indexed.
+	 */
+	PathIndex pathIndex(EPackage spec) {
+		if (pathIndex == null || pathIndex.getSpec() != spec) {
+			pathIndex = new PathIndex(spec);
+		}
+		return pathIndex;
+	}
 
 	Boolean isInSpec(String elemClassName, EPackage spec) {
 		EClassifier elemClassifier = spec.getEClassifier(elemClassName);
@@ -146,6 +827,9 @@ public class AHRQProfiler implements Runnable {
 
 	public void applyLowerBounds(ElementDefinition snapshotElem, EStructuralFeature outFeature) {
 		UnsignedInt uint = snapshotElem.getMin();
+		if (uint == null || uint.getValue() == null) {
+			return;
+		}
 		BigInteger bigInt = uint.getValue();
 		Integer min = bigInt.intValue();
 
@@ -155,6 +839,9 @@ public class AHRQProfiler implements Runnable {
 	}
 
 	public void applyUpperBounds(ElementDefinition snapshotElem, EStructuralFeature outFeature) {
+		if (snapshotElem.getMax() == null) {
+			return;
+		}
 		String maxStr = snapshotElem.getMax().getValue();
 		if (maxStr != null) {
 			if ("*".equals(maxStr)) {
@@ -163,7 +850,7 @@ public class AHRQProfiler implements Runnable {
 				try {
 					outFeature.setUpperBound(Integer.parseInt(maxStr));
 				} catch (NumberFormatException e) {
-					System.err.println("⚠️ Invalid max cardinality: " + maxStr);
+					diagnostics.report(Diagnostics.Category.INVALID_CARDINALITY, snapshotElem.getPath().getValue(), maxStr);
 				}
 			}
 		}
@@ -177,6 +864,9 @@ public class AHRQProfiler implements Runnable {
 			return;
 		}
 
+		ProfilerEvents.ApplySliceEvent event = new ProfilerEvents.ApplySliceEvent();
+		event.begin();
+
 		// Create an annotation for the slicing metadata
 		EAnnotation slicingAnnotation = EcoreFactory.eINSTANCE.createEAnnotation();
 		slicingAnnotation.setSource("http://hl7.org/fhir/slicing");
@@ -194,8 +884,8 @@ public class AHRQProfiler implements Runnable {
 		if (slicing.getRules() != null) {
 			slicingAnnotation.getDetails().put("rules", slicing.getRules().getValue().getLiteral());
 		}
-		if (slicing.getOrdered() != null) {
-			slicingAnnotation.getDetails().put("ordered", slicing.getOrdered().toString());
+		if (slicing.getOrdered() != null && slicing.getOrdered().isSetValue()) {
+			slicingAnnotation.getDetails().put("ordered", String.valueOf(slicing.getOrdered().isValue()));
 		}
 		if (slicing.getDescription() != null && !slicing.getDescription().getValue().isEmpty()) {
 			slicingAnnotation.getDetails().put("description", slicing.getDescription().getValue());
@@ -203,22 +893,243 @@ public class AHRQProfiler implements Runnable {
 
 		// Attach the annotation to the EStructuralFeature
 		outFeature.getEAnnotations().add(slicingAnnotation);
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = snapshotElem.getPath().getValue();
+			event.classifier = outFeature.getEContainingClass() == null ? null : outFeature.getEContainingClass().getName();
+			event.discriminators = index;
+			event.commit();
+		}
 	}
 
 
 	StructureDefinition loadProfile() {
-		InputStream reader = AHRQProfiler.class.getClassLoader()
-			.getResourceAsStream(profile);
-		return (StructureDefinition) FHIRSerDeser.load(reader, Finals.SDS_FORMAT.XML);
+		return loadProfile(profileNames().get(0));
+	}
+
+	/**
+	 * Loads a profile in FHIR XML or JSON, by its extension or else its first
+	 * character.  Only the {@link ProfileProjection} is read unless
+	 * --full-parse asks for the whole XML document.
+	 */
+	StructureDefinition loadProfile(String name) {
+		return report.time("loadProfile", () -> readProfile(name));
+	}
+
+	/** A catalogued profile from the registry, else a fresh parse. */
+	private StructureDefinition readProfile(String name) {
+		String canonical = catalogued.get(name);
+		Source source = canonical == null ? null : sources.get(canonical);
+		StructureDefinition profile = source != null && source.name().equals(name) ? registry().get(canonical) : null;
+		return profile != null ? profile : parseProfile(name);
+	}
+
+	private StructureDefinition parseProfile(String name) {
+		try {
+			Map.Entry<NpmPackage, NpmPackage.Entry> packaged = findInPackages(name);
+			ByteBuffer content = packaged != null ? packaged.getKey().content(packaged.getValue()) : Inputs.read(name);
+			Finals.SDS_FORMAT format = packaged != null ? Finals.SDS_FORMAT.JSON : JsonProfileReader.format(name, content);
+			ProfilerEvents.SerDeserEvent event = ProfilerEvents.serDeser("load", format.name(), name);
+			InputStream reader = new Inputs.ByteBufferInputStream(content);
+			StructureDefinition profile;
+			if (packaged != null) {
+				String url = packaged.getValue().url();
+				profile = url == null ? packaged.getKey().structureDefinition(packaged.getValue())
+					: registry().get(packaged.getValue().version() == null ? url : url + "|" + packaged.getValue().version());
+			} else if (format == Finals.SDS_FORMAT.JSON) {
+				profile = jsonReader.read(reader);
+			} else if (fullParse) {
+				profile = (StructureDefinition) FHIRSerDeser.load(reader, Finals.SDS_FORMAT.XML);
+			} else {
+				profile = xmlReader.read(reader);
+			}
+			if (packaged == null && profile != null) {
+				registry().put(profile);
+				if (profile.getUrl() != null && profile.getUrl().getValue() != null) {
+					catalog(name, profile, SpecCache.hash(content));
+				}
+			}
+			if (profile != null && profile.getType() != null) {
+				event.classifier = profile.getType().getValue();
+				if (profile.getUrl() != null && profile.getUrl().getValue() != null) {
+					profileTypes.put(profile.getUrl().getValue(), profile.getType().getValue());
+				}
+			}
+			event.commit();
+			return profile;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Records where {@code profile} came from.  The first name to declare a
+	 * canonical keeps it; parsing that name again updates its hash.
+	 */
+	private void catalog(String name, StructureDefinition profile, String hash) {
+		Source source = new Source(name, hash);
+		String canonical = canonical(profile);
+		String url = profile.getUrl().getValue();
+		catalogued.put(name, canonical);
+		for (String key : canonical.equals(url) ? List.of(url) : List.of(canonical, url)) {
+			sources.merge(key, source, (old, added) -> old.name().equals(added.name()) ? added : old);
+		}
+	}
+
+	/** The raw content of a profile, from a --package if one has it, else as a file, URI or resource. */
+	ByteBuffer profileContent(String name) throws IOException {
+		Map.Entry<NpmPackage, NpmPackage.Entry> packaged = findInPackages(name);
+		return packaged != null ? packaged.getKey().content(packaged.getValue()) : Inputs.read(name);
+	}
+
+	/** The first --package with a StructureDefinition named {@code name}, and its entry. */
+	Map.Entry<NpmPackage, NpmPackage.Entry> findInPackages(String name) {
+		for (NpmPackage npmPackage : npmPackages()) {
+			NpmPackage.Entry entry = npmPackage.find(name);
+			if (entry != null) {
+				return Map.entry(npmPackage, entry);
+			}
+		}
+		return null;
+	}
+
+	/** The --package tarballs, each read once, on first use. */
+	synchronized List<NpmPackage> npmPackages() {
+		if (npmPackages == null) {
+			List<NpmPackage> opened = new ArrayList<>();
+			for (String name : packages) {
+				opened.add(report.time("loadPackage", () -> {
+					try {
+						return NpmPackage.open(name);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}));
+			}
+			npmPackages = opened;
+		}
+		return npmPackages;
+	}
+
+	/**
+	 * The profiles parsed this run, by canonical URL and version.  Misses are
+	 * parsed again from the profile named for them, or else resolved from the
+	 * --package indexes.
+	 */
+	synchronized ProfileRegistry registry() {
+		if (registry == null) {
+			registry = new ProfileRegistry(registrySize, canonical -> {
+				Source source = sources.get(canonical);
+				if (source != null) {
+					return parseProfile(source.name());
+				}
+				Map.Entry<NpmPackage, NpmPackage.Entry> packaged = findInPackages(canonical);
+				return packaged == null ? null : packaged.getKey().structureDefinition(packaged.getValue());
+			});
+		}
+		return registry;
+	}
+
+	/** Snapshots for differential-only profiles, with each base expanded once per run. */
+	synchronized SnapshotGenerator snapshotGenerator(EPackage spec) {
+		if (snapshotGenerator == null || snapshotGenerator.getSpec() != spec) {
+			snapshotGenerator = new SnapshotGenerator(pathIndex(spec), registry());
+		}
+		return snapshotGenerator;
+	}
+
+	/** The type a canonical URL constrains, from the profiles loaded so far or else the package indexes. */
+	String typeOfProfile(String url) {
+		String type = profileTypes.get(url);
+		if (type == null) {
+			Map.Entry<NpmPackage, NpmPackage.Entry> packaged = findInPackages(url);
+			type = packaged == null ? null : packaged.getValue().type();
+		}
+		return type;
+	}
+
+	List<StructureDefinition> loadProfiles() {
+		List<StructureDefinition> profiles = new ArrayList<>();
+		for (String name : profileNames()) {
+			profiles.add(loadProfile(name));
+		}
+		return profiles;
+	}
+
+	/**
+	 * Expands the -p values and the --profile-list file into profile names.
+	 * A directory stands for the *.xml files directly inside it, in name order.
+	 */
+	List<String> profileNames() {
+		List<String> names = new ArrayList<>(profile);
+		if (profileList != null) {
+			try {
+				for (String line : Files.readAllLines(Paths.get(profileList))) {
+					line = line.trim();
+					if (!line.isEmpty() && !line.startsWith("#")) {
+						names.add(line);
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return expand(names);
+	}
+
+	/**
+	 * Replaces each directory in {@code names} by the *.xml and *.json files
+	 * directly inside it.  A .json file is left out when the directory also
+	 * has the .xml file of the same name.
+	 */
+	static List<String> expand(List<String> names) {
+		List<String> expanded = new ArrayList<>();
+		for (String name : names) {
+			Path dir = Paths.get(name);
+			if (Files.isDirectory(dir)) {
+				try (Stream<Path> files = Files.list(dir)) {
+					files.map(Path::toString)
+						.filter(f -> f.endsWith(".xml") || f.endsWith(".json") && !Files.isRegularFile(Paths.get(f.substring(0, f.length() - 5) + ".xml")))
+						.sorted()
+						.forEach(expanded::add);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			} else {
+				expanded.add(name);
+			}
+		}
+		return expanded;
 	}
 
 	EPackage loadSpec() {
-		InputStream reader = AHRQProfiler.class.getClassLoader()
-			.getResourceAsStream(input);
-			log.debug("reader=" + reader);
-		return (EPackage) FHIRSerDeser.load(reader, Finals.SDS_FORMAT.ECORE);
+		log.debug("spec={}", input);
+		try {
+			if (noSpecCache) {
+				ProfilerEvents.SerDeserEvent event = ProfilerEvents.serDeser("load", Finals.SDS_FORMAT.ECORE.name(), input);
+				try (InputStream reader = Inputs.open(input)) {
+					EPackage spec = (EPackage) FHIRSerDeser.load(reader, Finals.SDS_FORMAT.ECORE);
+					event.classifier = spec.getName();
+					event.commit();
+					return spec;
+				}
+			}
+			return specCache().load(Inputs.read(input));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	SpecCache specCache() {
+		Path dir = specCache == null ? SpecCache.defaultDir() : Paths.get(specCache);
+		return new SpecCache(dir);
 	}
 
+	/**
+	 * Deep copies the whole spec.  Prefer {@link #createOutputPackage(EPackage)},
+	 * which does not copy the classifiers only to discard them.
+	 */
 	EPackage copySpec(EPackage spec) {
 		return (EPackage) EcoreUtil.copy(spec);
 	}
@@ -227,8 +1138,42 @@ public class AHRQProfiler implements Runnable {
 		pkg.getEClassifiers().clear();
 	}
 
-	private EStructuralFeature copyFeature(EStructuralFeature original) {
-		return (EStructuralFeature) EcoreUtil.copy(original);
+	/**
+	 * Copies only the package header (name, nsURI, nsPrefix and annotations) of
+	 * the spec.  Classifiers are pulled in on demand by {@link #outClass(EPackage, String)}.
+	 */
+	EPackage createOutputPackage(EPackage spec) {
+		return report.time("createOutputPackage", () -> {
+			EPackage out = EcoreFactory.eINSTANCE.createEPackage();
+			out.setName(spec.getName());
+			out.setNsURI(spec.getNsURI());
+			out.setNsPrefix(spec.getNsPrefix());
+			out.getEAnnotations().addAll(EcoreUtil.copyAll(spec.getEAnnotations()));
+			return out;
+		});
+	}
+
+	EClass outClass(EPackage out, String className) {
+		EClass outClassifier = (EClass) out.getEClassifier(className);
+		if (outClassifier == null) {
+			outClassifier = EcoreFactory.eINSTANCE.createEClass();
+			outClassifier.setName(className);
+			out.getEClassifiers().add(outClassifier);
+		}
+		return outClassifier;
+	}
+
+	private EStructuralFeature copyFeature(String path, EStructuralFeature original) {
+		ProfilerEvents.CopyFeatureEvent event = new ProfilerEvents.CopyFeatureEvent();
+		event.begin();
+		EStructuralFeature copy = (EStructuralFeature) EcoreUtil.copy(original);
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = path;
+			event.classifier = original.getEContainingClass().getName();
+			event.commit();
+		}
+		return copy;
 	}
 
 	public void applySnapshotElementToFeature(
@@ -269,23 +1214,35 @@ public class AHRQProfiler implements Runnable {
 		// 	fhirAnnotation.getDetails().put("pattern", value);
 		// }
 
+		// targetProfile of Reference types, for ReferenceSubstitution
+		StringJoiner targets = new StringJoiner(" ");
+		for (ElementDefinitionType type : snapshotElem.getType()) {
+			for (Canonical target : type.getTargetProfile()) {
+				if (target.getValue() != null) {
+					targets.add(target.getValue());
+				}
+			}
+		}
+		if (targets.length() > 0) {
+			fhirAnnotation.getDetails().put(ReferenceSubstitution.TARGET_PROFILE_KEY, targets.toString());
+		}
+
 		// binding
 		ElementDefinitionBinding binding = snapshotElem.getBinding();
 		if (binding != null) {
-			String valueSet = binding.getValueSet().getValue();
+			String valueSet = binding.getValueSet() == null ? null : binding.getValueSet().getValue();
 			if (valueSet != null) {
 				fhirAnnotation.getDetails().put("binding.valueSet", valueSet);
 			}
 
-			Object strength = binding.getStrength(); // might be enum or string
-			if (strength != null) {
-				fhirAnnotation.getDetails().put("binding.strength", strength.toString());
+			if (binding.getStrength() != null && binding.getStrength().getValue() != null) {
+				fhirAnnotation.getDetails().put("binding.strength", binding.getStrength().getValue().getLiteral());
 			}
 		}
 
 		// --- Add documentation ---
-		String doc = snapshotElem.getShort().getValue();
-		if (doc == null) {
+		String doc = snapshotElem.getShort() == null ? null : snapshotElem.getShort().getValue();
+		if (doc == null && snapshotElem.getDefinition() != null) {
 			doc = snapshotElem.getDefinition().getValue();
 		}
 
@@ -452,10 +1409,16 @@ public class AHRQProfiler implements Runnable {
                 app.printUsage();
                 return;
             }
-            app.run();
+            if (app.serve || app.port > 0) {
+                app.serve();
+            } else {
+                app.run();
+            }
             log.info("<==Finish");
         } catch (CmdLineException e) {
             log.error("Soaping is wrong.", e);
+        } catch (IOException e) {
+            log.error("Server stopped.", e);
         }
     }
 
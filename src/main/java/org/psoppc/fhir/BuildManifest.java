@@ -0,0 +1,230 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.emf.ecore.xmi.impl.EcoreResourceFactoryImpl;
+import org.eclipse.emf.ecore.xmi.impl.URIHandlerImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records, for an incremental build, the hash of every profile and its bases
+ * together with the hash of the spec and the profiler configuration, and
+ * keeps the fragment package each profile produced.  A profile whose hash is
+ * unchanged is not transformed again; its fragment is read back and merged.
+ * <p>
+ * The directory holds {@value #MANIFEST} and one {@code fragments/<hash>.ecore}
+ * per profile.  Fragments refer to spec types by the spec's nsURI, so they
+ * resolve against whichever copy of the spec is loaded.  A change of spec or
+ * configuration discards every entry.
+ */
+public class BuildManifest {
+
+	private static final Logger log = LoggerFactory.getLogger(BuildManifest.class);
+
+	public static final String MANIFEST = "manifest.properties";
+
+	static final String SPEC_KEY = "spec.hash";
+	static final String CONFIGURATION_KEY = "profiler.configuration";
+	static final String PROFILE_PREFIX = "profile.";
+
+	private final Path dir;
+	private final Path fragments;
+	private final String specHash;
+	private final String configuration;
+	private final Map<String, String> profiles = new TreeMap<>();
+
+	private static String codeHash;
+
+	public BuildManifest(Path dir, String specHash, String configuration) throws IOException {
+		this.dir = dir;
+		this.fragments = dir.resolve("fragments");
+		this.specHash = specHash;
+		this.configuration = configuration;
+		Path manifest = dir.resolve(MANIFEST);
+		if (Files.isRegularFile(manifest)) {
+			Properties properties = new Properties();
+			try (InputStream in = Files.newInputStream(manifest)) {
+				properties.load(in);
+			}
+			if (specHash.equals(properties.getProperty(SPEC_KEY)) && configuration.equals(properties.getProperty(CONFIGURATION_KEY))) {
+				for (String key : properties.stringPropertyNames()) {
+					if (key.startsWith(PROFILE_PREFIX)) {
+						profiles.put(key.substring(PROFILE_PREFIX.length()), properties.getProperty(key));
+					}
+				}
+			} else {
+				log.info("Spec or profiler changed; rebuilding every profile");
+			}
+		}
+	}
+
+	/**
+	 * A SHA-256 of the profiler's code: the jar it runs from, or every class
+	 * file under its classes directory.  If the code cannot be read, a value
+	 * that matches no earlier build is returned, so nothing stale is reused.
+	 */
+	static synchronized String codeHash() {
+		if (codeHash == null) {
+			try {
+				Path location = Paths.get(BuildManifest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				if (Files.isDirectory(location)) {
+					List<Path> classes;
+					try (Stream<Path> files = Files.walk(location)) {
+						classes = files.filter(file -> file.toString().endsWith(".class")).sorted().toList();
+					}
+					for (Path file : classes) {
+						digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+						digest.update(Files.readAllBytes(file));
+					}
+				} else {
+					digest.update(Files.readAllBytes(location));
+				}
+				codeHash = HexFormat.of().formatHex(digest.digest());
+			} catch (IOException | NoSuchAlgorithmException | URISyntaxException | RuntimeException e) {
+				log.warn("Cannot hash the profiler's code; rebuilding every profile", e);
+				codeHash = "unknown-" + UUID.randomUUID();
+			}
+		}
+		return codeHash;
+	}
+
+	/**
+	 * Returns the fragment built from {@code name} when it was last built
+	 * from content with {@code hash}, or null if it must be rebuilt.
+	 */
+	public synchronized EPackage fragment(String name, String hash, EPackage spec) {
+		if (!hash.equals(profiles.get(name))) {
+			return null;
+		}
+		Path file = fragmentFile(hash);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try {
+			return read(file, spec);
+		} catch (IOException | RuntimeException e) {
+			log.warn("Discarding unreadable fragment {}", file, e);
+			return null;
+		}
+	}
+
+	/** Stores the fragment built from {@code name} and records its hash. */
+	public synchronized void put(String name, String hash, EPackage fragment, EPackage spec) throws IOException {
+		Files.createDirectories(fragments);
+		Path file = fragmentFile(hash);
+		Path temp = Files.createTempFile(fragments, hash, ".tmp");
+		try {
+			Resource resource = new EcoreResourceFactoryImpl().createResource(URI.createFileURI(file.toAbsolutePath().toString()));
+			resource.getContents().add(fragment);
+			try (OutputStream out = EcoreWriter.open(temp, false)) {
+				resource.save(out, saveOptions(spec));
+			}
+			resource.getContents().remove(fragment);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		profiles.put(name, hash);
+	}
+
+	/**
+	 * Writes the manifest, keeping only {@code names}, and deletes fragments
+	 * that no entry refers to any more.
+	 */
+	public synchronized void save(Iterable<String> names) throws IOException {
+		Set<String> keep = new HashSet<>();
+		names.forEach(keep::add);
+		profiles.keySet().retainAll(keep);
+
+		Properties properties = new Properties();
+		properties.setProperty(SPEC_KEY, specHash);
+		properties.setProperty(CONFIGURATION_KEY, configuration);
+		profiles.forEach((name, hash) -> properties.setProperty(PROFILE_PREFIX + name, hash));
+		Files.createDirectories(dir);
+		Path manifest = dir.resolve(MANIFEST);
+		Path temp = Files.createTempFile(dir, MANIFEST, ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			properties.store(out, "psoppc incremental build");
+		}
+		Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		if (Files.isDirectory(fragments)) {
+			Set<Path> live = new HashSet<>();
+			profiles.values().forEach(hash -> live.add(fragmentFile(hash)));
+			try (Stream<Path> files = Files.list(fragments)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					if (!live.contains(file)) {
+						Files.deleteIfExists(file);
+					}
+				}
+			}
+		}
+	}
+
+	public synchronized String hash(String name) {
+		return profiles.get(name);
+	}
+
+	Path fragmentFile(String hash) {
+		return fragments.resolve(hash + ".ecore");
+	}
+
+	static EPackage read(Path file, EPackage spec) throws IOException {
+		ResourceSet resourceSet = new ResourceSetImpl();
+		resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap().put("ecore", new EcoreResourceFactoryImpl());
+		resourceSet.getPackageRegistry().put(spec.getNsURI(), spec);
+		Resource resource = resourceSet.createResource(URI.createFileURI(file.toAbsolutePath().toString()));
+		try (InputStream in = Inputs.open(file.toString())) {
+			resource.load(in, Collections.emptyMap());
+		}
+		EPackage fragment = (EPackage) resource.getContents().get(0);
+		EcoreUtil.resolveAll(fragment);
+		resource.getContents().remove(fragment);
+		return fragment;
+	}
+
+	/** Saves references into the spec as {@code <nsURI>#//Type}, wherever the spec was loaded from. */
+	static Map<Object, Object> saveOptions(EPackage spec) {
+		Map<Object, Object> options = EcoreWriter.saveOptions();
+		URI specUri = spec.eResource() == null ? null : spec.eResource().getURI();
+		options.put(XMLResource.OPTION_URI_HANDLER, new URIHandlerImpl() {
+			@Override
+			public URI deresolve(URI uri) {
+				if (specUri != null && specUri.equals(uri.trimFragment())) {
+					return URI.createURI(spec.getNsURI()).appendFragment(uri.fragment());
+				}
+				return super.deresolve(uri);
+			}
+		});
+		return options;
+	}
+}
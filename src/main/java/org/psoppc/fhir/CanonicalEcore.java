@@ -0,0 +1,127 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.eclipse.emf.common.util.ECollections;
+import org.eclipse.emf.common.util.EList;
+import org.eclipse.emf.ecore.EAnnotation;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EModelElement;
+import org.eclipse.emf.ecore.ENamedElement;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.eclipse.emf.ecore.resource.Resource;
+
+/**
+ * Puts an output package in canonical form, so that the same profiles and
+ * spec always save to the same bytes whatever order the snapshot walk, the
+ * worker threads or the build cache produced them in.  The order the
+ * profiles are listed in is not normalized away: where two constrain the
+ * same feature the first one's wins, so only profiles that do not overlap
+ * may be listed in any order.
+ * <p>
+ * Classifiers are sorted by name, the features of each class by name, and
+ * the annotations of every element by source and their details by key.
+ * Detail values have their line endings and trailing whitespace normalized.
+ * The SHA-256 of the canonical document is then recorded in an annotation
+ * on the package with source {@value #CANONICAL_URL}; the hash covers the
+ * document without that annotation, so downstream steps can compare it
+ * against their last input and skip work when it is unchanged.
+ */
+public class CanonicalEcore {
+
+	public static final String CANONICAL_URL = "http://psoppc.org/canonical";
+	public static final String HASH_KEY = "sha256";
+
+	private static final Comparator<ENamedElement> BY_NAME =
+		Comparator.comparing(ENamedElement::getName, Comparator.nullsFirst(Comparator.naturalOrder()));
+	private static final Comparator<EAnnotation> BY_SOURCE =
+		Comparator.comparing(EAnnotation::getSource, Comparator.nullsFirst(Comparator.naturalOrder()));
+	private static final Comparator<Map.Entry<String, String>> BY_KEY =
+		Comparator.comparing(Map.Entry::getKey, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+	/** Sorts and normalizes {@code pkg} in place. */
+	public static void canonicalize(EPackage pkg) {
+		ECollections.sort(pkg.getEClassifiers(), BY_NAME);
+		for (EClassifier classifier : pkg.getEClassifiers()) {
+			if (classifier instanceof EClass eClass) {
+				ECollections.sort(eClass.getEStructuralFeatures(), BY_NAME);
+			}
+		}
+		normalize(pkg);
+		for (Iterator<EObject> contents = pkg.eAllContents(); contents.hasNext();) {
+			if (contents.next() instanceof EModelElement element) {
+				normalize(element);
+			}
+		}
+	}
+
+	private static void normalize(EModelElement element) {
+		ECollections.sort(element.getEAnnotations(), BY_SOURCE);
+		for (EAnnotation annotation : element.getEAnnotations()) {
+			EList<Map.Entry<String, String>> details = annotation.getDetails();
+			ECollections.sort(details, BY_KEY);
+			for (Map.Entry<String, String> detail : details) {
+				if (detail.getValue() != null) {
+					detail.setValue(whitespace(detail.getValue()));
+				}
+			}
+		}
+	}
+
+	/** Unix line endings, no trailing whitespace on any line, none leading or trailing overall. */
+	static String whitespace(String value) {
+		return value.replace("\r\n", "\n").replace('\r', '\n').replaceAll("[ \\t]+\n", "\n").strip();
+	}
+
+	/**
+	 * Canonicalizes the package at the root of {@code resource}, hashes it as
+	 * it would be saved with {@code options} and records the hash on it.  The
+	 * document is serialized once to compute the hash and not kept.
+	 *
+	 * @return the hash, as lowercase hex
+	 */
+	public static String seal(Resource resource, Map<?, ?> options) throws IOException {
+		EPackage pkg = (EPackage) resource.getContents().get(0);
+		canonicalize(pkg);
+		EAnnotation previous = pkg.getEAnnotation(CANONICAL_URL);
+		if (previous != null) {
+			pkg.getEAnnotations().remove(previous);
+		}
+		String hash = digest(resource, options);
+		EAnnotation annotation = EcoreFactory.eINSTANCE.createEAnnotation();
+		annotation.setSource(CANONICAL_URL);
+		annotation.getDetails().put(HASH_KEY, hash);
+		pkg.getEAnnotations().add(0, annotation);
+		return hash;
+	}
+
+	/** The hash recorded by {@link #seal}, or null if {@code pkg} was not saved canonically. */
+	public static String hash(EPackage pkg) {
+		EAnnotation annotation = pkg.getEAnnotation(CANONICAL_URL);
+		return annotation == null ? null : annotation.getDetails().get(HASH_KEY);
+	}
+
+	private static String digest(Resource resource, Map<?, ?> options) throws IOException {
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), sha256)) {
+			resource.save(out, options);
+		}
+		return HexFormat.of().formatHex(sha256.digest());
+	}
+}
@@ -0,0 +1,149 @@
+package org.psoppc.fhir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.emf.ecore.EAnnotation;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+
+/**
+ * Makes an output package self-contained.  The features the profiler copies
+ * still refer to datatypes and resources in the spec; this computes the
+ * classifiers of the spec reachable from the output (through feature types,
+ * supertypes, opposites and annotation references) and copies each of them
+ * into the output exactly once, re-pointing every reference at the copies.
+ * <p>
+ * Classifiers are numbered by their position in the spec and the closure is
+ * a BitSet over those numbers.  A spec classifier whose name the output
+ * already has (a profiled class) stands for that output class and is not
+ * copied or walked, so the profile's constraints are kept.
+ */
+public class ClassifierClosure {
+
+	private final EPackage spec;
+	private final List<EClassifier> classifiers;
+	private final Map<EClassifier, Integer> ids = new IdentityHashMap<>();
+
+	public ClassifierClosure(EPackage spec) {
+		this.spec = spec;
+		this.classifiers = new ArrayList<>(spec.getEClassifiers());
+		for (int id = 0; id < classifiers.size(); id++) {
+			ids.put(classifiers.get(id), id);
+		}
+	}
+
+	/** The spec classifiers {@code out} needs and does not have, by position in the spec. */
+	public BitSet reachable(EPackage out) {
+		BitSet visited = new BitSet(classifiers.size());
+		Deque<EClassifier> work = new ArrayDeque<>();
+		for (EClassifier classifier : out.getEClassifiers()) {
+			references(classifier, out, visited, work);
+		}
+		while (!work.isEmpty()) {
+			references(work.pop(), out, visited, work);
+		}
+		return visited;
+	}
+
+	private void references(EClassifier classifier, EPackage out, BitSet visited, Deque<EClassifier> work) {
+		if (!(classifier instanceof EClass eClass)) {
+			return;
+		}
+		for (EClass superType : eClass.getESuperTypes()) {
+			mark(superType, out, visited, work);
+		}
+		for (EStructuralFeature feature : eClass.getEStructuralFeatures()) {
+			mark(feature.getEType(), out, visited, work);
+			if (feature instanceof EReference reference && reference.getEOpposite() != null) {
+				mark(reference.getEOpposite().getEContainingClass(), out, visited, work);
+			}
+			for (EAnnotation annotation : feature.getEAnnotations()) {
+				for (EObject target : annotation.getReferences()) {
+					if (target instanceof EClassifier referenced) {
+						mark(referenced, out, visited, work);
+					}
+				}
+			}
+		}
+	}
+
+	private void mark(EClassifier classifier, EPackage out, BitSet visited, Deque<EClassifier> work) {
+		Integer id = classifier == null ? null : ids.get(classifier);
+		if (id == null || visited.get(id)) {
+			return;
+		}
+		visited.set(id);
+		if (out.getEClassifier(classifier.getName()) == null) {
+			work.push(classifier);
+		}
+	}
+
+	/**
+	 * Copies the closure of {@code out} into it and re-points references from
+	 * the output into the spec at the output's classifiers.
+	 *
+	 * @return the number of classifiers copied
+	 */
+	public int copyInto(EPackage out) {
+		BitSet reachable = reachable(out);
+		List<EClassifier> existing = new ArrayList<>(out.getEClassifiers());
+		EcoreUtil.Copier copier = new EcoreUtil.Copier() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public EObject get(Object key) {
+				EObject copy = super.get(key);
+				if (copy == null && key instanceof EClassifier classifier && classifier.getEPackage() == spec) {
+					copy = out.getEClassifier(classifier.getName());
+				}
+				return copy;
+			}
+		};
+		List<EClassifier> copies = new ArrayList<>();
+		for (int id = reachable.nextSetBit(0); id >= 0; id = reachable.nextSetBit(id + 1)) {
+			EClassifier classifier = classifiers.get(id);
+			if (out.getEClassifier(classifier.getName()) == null) {
+				copies.add((EClassifier) copier.copy(classifier));
+			}
+		}
+		copier.copyReferences();
+		out.getEClassifiers().addAll(copies);
+
+		for (EClassifier classifier : existing) {
+			if (!(classifier instanceof EClass eClass)) {
+				continue;
+			}
+			for (EStructuralFeature feature : eClass.getEStructuralFeatures()) {
+				EObject type = copier.get(feature.getEType());
+				if (type instanceof EClassifier copy) {
+					feature.setEType(copy);
+				}
+				for (EAnnotation annotation : feature.getEAnnotations()) {
+					List<EObject> targets = annotation.getReferences();
+					for (int i = targets.size() - 1; i >= 0; i--) {
+						EObject copy = copier.get(targets.get(i));
+						if (copy != null && copy != targets.get(i)) {
+							if (targets.contains(copy)) {
+								targets.remove(i);
+							} else {
+								targets.set(i, copy);
+							}
+						}
+					}
+				}
+			}
+		}
+		return copies.size();
+	}
+}
@@ -0,0 +1,126 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Counts the issues met while transforming profiles, by category and element
+ * path, instead of logging each one.  Individual occurrences go to the debug
+ * log; {@link #logSummary()} reports one line per category and path at the
+ * end of a run, and {@link #write(Path)} the same as JSON.
+ * <p>
+ * Safe for use from the worker threads of a parallel run.
+ */
+public class Diagnostics {
+
+	private static final Logger log = LoggerFactory.getLogger(Diagnostics.class);
+
+	/** Kinds of issue; the names appear in the summary and the JSON. */
+	public enum Category {
+		CLASS_NOT_FOUND("class not in spec"),
+		FEATURE_NOT_FOUND("feature not in spec"),
+		INVALID_CARDINALITY("invalid max cardinality"),
+		NO_ELEMENTS("profile without snapshot or differential"),
+		DUPLICATE_SLICE("slice with the discriminator values of another");
+
+		final String description;
+
+		Category(String description) {
+			this.description = description;
+		}
+	}
+
+	record Key(Category category, String path) {}
+
+	private final Map<Key, LongAdder> counts = new ConcurrentHashMap<>();
+
+	/**
+	 * Records one occurrence of {@code category} at {@code path}.  The detail
+	 * is only formatted when debug logging is on.
+	 */
+	public void report(Category category, String path, String detail) {
+		counts.computeIfAbsent(new Key(category, path), k -> new LongAdder()).increment();
+		log.debug("{} at {}: {}", category.description, path, detail);
+	}
+
+	public long count(Category category) {
+		long total = 0;
+		for (Map.Entry<Key, LongAdder> entry : counts.entrySet()) {
+			if (entry.getKey().category() == category) {
+				total += entry.getValue().sum();
+			}
+		}
+		return total;
+	}
+
+	public long total() {
+		return counts.values().stream().mapToLong(LongAdder::sum).sum();
+	}
+
+	public void clear() {
+		counts.clear();
+	}
+
+	/** Entries ordered by category, then by descending count, then by path. */
+	List<Map.Entry<Key, Long>> sorted() {
+		List<Map.Entry<Key, Long>> entries = new ArrayList<>();
+		counts.forEach((key, count) -> entries.add(Map.entry(key, count.sum())));
+		entries.sort(Comparator.<Map.Entry<Key, Long>, Category>comparing(e -> e.getKey().category())
+			.thenComparing(Map.Entry::getValue, Comparator.reverseOrder())
+			.thenComparing(e -> e.getKey().path()));
+		return entries;
+	}
+
+	/** Logs one table of every category and path seen, or nothing if the run was clean. */
+	public void logSummary() {
+		List<Map.Entry<Key, Long>> entries = sorted();
+		if (entries.isEmpty()) {
+			return;
+		}
+		StringBuilder table = new StringBuilder();
+		table.append(String.format("%-24s %6s  %s%n", "category", "count", "path"));
+		for (Map.Entry<Key, Long> entry : entries) {
+			table.append(String.format("%-24s %6d  %s%n", entry.getKey().category(), entry.getValue(), entry.getKey().path()));
+		}
+		log.warn("{} issue(s) at {} path(s):{}{}", total(), entries.size(), System.lineSeparator(), table);
+	}
+
+	Map<String, Object> toMap() {
+		Map<String, Object> byCategory = new LinkedHashMap<>();
+		for (Map.Entry<Key, Long> entry : sorted()) {
+			Category category = entry.getKey().category();
+			@SuppressWarnings("unchecked")
+			Map<String, Object> item = (Map<String, Object>) byCategory.computeIfAbsent(category.name(), k -> {
+				Map<String, Object> created = new LinkedHashMap<>();
+				created.put("description", category.description);
+				created.put("count", 0L);
+				created.put("paths", new LinkedHashMap<String, Long>());
+				return created;
+			});
+			item.put("count", (Long) item.get("count") + entry.getValue());
+			@SuppressWarnings("unchecked")
+			Map<String, Long> paths = (Map<String, Long>) item.get("paths");
+			paths.put(entry.getKey().path(), entry.getValue());
+		}
+		Map<String, Object> diagnostics = new LinkedHashMap<>();
+		diagnostics.put("total", total());
+		diagnostics.put("categories", byCategory);
+		return diagnostics;
+	}
+
+	public void write(Path target) throws IOException {
+		new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(target.toFile(), toMap());
+	}
+}
@@ -0,0 +1,93 @@
+package org.psoppc.fhir;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.emf.ecore.xmi.impl.EcoreResourceFactoryImpl;
+import org.hl7.fhir.emf.Finals;
+
+/**
+ * Serializes an output package straight to its target file as UTF-8 ecore,
+ * optionally gzipped.  Unlike {@code FHIRSerDeser.save} the document is not
+ * held in memory: EMF flushes its buffer to the stream every
+ * {@link #FLUSH_THRESHOLD} characters.
+ * <p>
+ * A canonical write first puts the package in the form described by
+ * {@link CanonicalEcore} and records its content hash.
+ */
+public class EcoreWriter {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	static final int FLUSH_THRESHOLD = 64 * 1024;
+
+	public static void write(EPackage pkg, Path target, boolean gzip) throws IOException {
+		write(pkg, target, gzip, false);
+	}
+
+	public static void write(EPackage pkg, Path target, boolean gzip, boolean canonical) throws IOException {
+		ProfilerEvents.SerDeserEvent event = ProfilerEvents.serDeser("save", Finals.SDS_FORMAT.ECORE.name(), target.toString());
+		event.classifier = pkg.getName();
+		Resource resource = new EcoreResourceFactoryImpl().createResource(URI.createFileURI(target.toAbsolutePath().toString()));
+		resource.getContents().add(pkg);
+		try (OutputStream out = open(target, gzip)) {
+			save(resource, out, canonical);
+		}
+		event.commit();
+	}
+
+	/** Writes to a caller-owned stream, which is left open. */
+	public static void write(EPackage pkg, OutputStream out) throws IOException {
+		write(pkg, out, false, false);
+	}
+
+	/** Writes to a caller-owned stream, which is left open; a gzipped document is finished but not closed. */
+	public static void write(EPackage pkg, OutputStream out, boolean gzip, boolean canonical) throws IOException {
+		ProfilerEvents.SerDeserEvent event = ProfilerEvents.serDeser("save", Finals.SDS_FORMAT.ECORE.name(), null);
+		event.classifier = pkg.getName();
+		Resource resource = new EcoreResourceFactoryImpl().createResource(URI.createURI(pkg.getName() + ".ecore"));
+		resource.getContents().add(pkg);
+		if (gzip) {
+			GZIPOutputStream zipped = new GZIPOutputStream(out, BUFFER_SIZE);
+			save(resource, zipped, canonical);
+			zipped.finish();
+		} else {
+			save(resource, out, canonical);
+		}
+		event.commit();
+	}
+
+	private static void save(Resource resource, OutputStream out, boolean canonical) throws IOException {
+		Map<Object, Object> options = saveOptions();
+		if (canonical) {
+			options.put(Resource.OPTION_LINE_DELIMITER, "\n");
+			CanonicalEcore.seal(resource, options);
+		}
+		resource.save(out, options);
+	}
+
+	static OutputStream open(Path target, boolean gzip) throws IOException {
+		OutputStream out = Files.newOutputStream(target);
+		if (gzip) {
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		return new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+
+	static Map<Object, Object> saveOptions() {
+		Map<Object, Object> options = new HashMap<>();
+		options.put(XMLResource.OPTION_ENCODING, StandardCharsets.UTF_8.name());
+		options.put(XMLResource.OPTION_FLUSH_THRESHOLD, FLUSH_THRESHOLD);
+		return options;
+	}
+}
@@ -0,0 +1,128 @@
+package org.psoppc.fhir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Resolves the names given to -i and -p.  A name is tried, in order, as a
+ * file on disk (read through a read-only memory map), as an absolute URI
+ * (file:, jar:, http: ...) and finally as a classpath resource.
+ */
+public final class Inputs {
+
+	private Inputs() {
+	}
+
+	/**
+	 * Returns the whole content of {@code name}.  Files are mapped rather than
+	 * copied onto the heap.
+	 */
+	public static ByteBuffer read(String name) throws IOException {
+		Path file = asFile(name);
+		if (file != null) {
+			return map(file);
+		}
+		try (InputStream in = openStream(name)) {
+			return ByteBuffer.wrap(in.readAllBytes());
+		}
+	}
+
+	public static InputStream open(String name) throws IOException {
+		Path file = asFile(name);
+		if (file != null) {
+			return new ByteBufferInputStream(map(file));
+		}
+		return openStream(name);
+	}
+
+	static ByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private static Path asFile(String name) {
+		try {
+			Path file = Paths.get(name);
+			return Files.isRegularFile(file) ? file : null;
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	private static InputStream openStream(String name) throws IOException {
+		URI uri = asUri(name);
+		if (uri != null) {
+			return uri.toURL().openStream();
+		}
+		InputStream in = Inputs.class.getClassLoader().getResourceAsStream(name);
+		if (in == null) {
+			throw new FileNotFoundException(name);
+		}
+		return in;
+	}
+
+	/** Only names with a scheme of two or more letters count, so "C:\..." stays a path. */
+	private static URI asUri(String name) {
+		int colon = name.indexOf(':');
+		if (colon < 2) {
+			return null;
+		}
+		try {
+			URI uri = new URI(name);
+			return uri.isAbsolute() ? uri : null;
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	/** An InputStream view of a ByteBuffer; reads advance a private duplicate. */
+	static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EDataType;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.hl7.fhir.FhirFactory;
+import org.hl7.fhir.StructureDefinition;
+import org.hl7.fhir.emf.Finals;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a StructureDefinition in FHIR JSON, as package registries distribute
+ * them, with Jackson's streaming parser.  JSON properties are matched to the
+ * features of the FHIR EMF model by name: an object becomes an instance of
+ * the feature's type, a scalar the {@code value} of a primitive type, and an
+ * array one element per item.
+ * <p>
+ * Properties outside the {@link ProfileProjection}, primitive extensions
+ * ({@code _name}) and properties the model does not have are skipped token
+ * by token, without building strings or objects for them.  The reader holds
+ * no per-document state and may be shared between threads.
+ */
+public class JsonProfileReader {
+
+	private static final String RESOURCE_TYPE = "resourceType";
+
+	private final JsonFactory factory = new JsonFactory();
+
+	/**
+	 * JSON if {@code name} ends in .json, XML if it ends in .xml; otherwise
+	 * JSON if the first character of {@code content} (after any BOM and
+	 * whitespace) is '{'.
+	 */
+	public static Finals.SDS_FORMAT format(String name, ByteBuffer content) {
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".json")) {
+			return Finals.SDS_FORMAT.JSON;
+		}
+		if (lower.endsWith(".xml")) {
+			return Finals.SDS_FORMAT.XML;
+		}
+		for (int i = content.position(); i < content.limit(); i++) {
+			int b = content.get(i) & 0xff;
+			if (b == 0xef || b == 0xbb || b == 0xbf || Character.isWhitespace(b)) {
+				continue;
+			}
+			return b == '{' ? Finals.SDS_FORMAT.JSON : Finals.SDS_FORMAT.XML;
+		}
+		return Finals.SDS_FORMAT.XML;
+	}
+
+	public StructureDefinition read(InputStream in) throws IOException {
+		try (JsonParser parser = factory.createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "Expected a StructureDefinition object");
+			}
+			StructureDefinition profile = FhirFactory.eINSTANCE.createStructureDefinition();
+			readObject(parser, profile);
+			return profile;
+		}
+	}
+
+	/** Reads the properties of the object the parser is at into {@code target}. */
+	private void readObject(JsonParser parser, EObject target) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.currentName();
+			JsonToken token = parser.nextToken();
+			if (RESOURCE_TYPE.equals(name)) {
+				if (!target.eClass().getName().equals(parser.getText())) {
+					throw new JsonParseException(parser, "Expected a " + target.eClass().getName() + ", not a " + parser.getText());
+				}
+				continue;
+			}
+			EStructuralFeature feature = name.startsWith("_") || !ProfileProjection.includes(target.eClass(), name)
+				? null : target.eClass().getEStructuralFeature(name);
+			if (feature == null) {
+				parser.skipChildren();
+			} else if (token == JsonToken.START_ARRAY) {
+				while (parser.nextToken() != JsonToken.END_ARRAY) {
+					readValue(parser, target, feature);
+				}
+			} else {
+				readValue(parser, target, feature);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readValue(JsonParser parser, EObject target, EStructuralFeature feature) throws IOException {
+		JsonToken token = parser.currentToken();
+		Object value;
+		if (token == JsonToken.VALUE_NULL) {
+			return;
+		} else if (feature instanceof EAttribute attribute && token.isScalarValue()) {
+			value = fromString(parser, attribute.getEAttributeType());
+		} else if (feature instanceof EReference reference && token == JsonToken.START_OBJECT) {
+			EObject child = EcoreUtil.create(reference.getEReferenceType());
+			readObject(parser, child);
+			value = child;
+		} else if (feature instanceof EReference reference && token.isScalarValue()) {
+			EClass type = reference.getEReferenceType();
+			EStructuralFeature primitive = type.getEStructuralFeature("value");
+			if (!(primitive instanceof EAttribute attribute)) {
+				throw new JsonParseException(parser, feature.getName() + " is a " + type.getName() + ", not a primitive");
+			}
+			EObject child = EcoreUtil.create(type);
+			child.eSet(attribute, fromString(parser, attribute.getEAttributeType()));
+			value = child;
+		} else {
+			parser.skipChildren();
+			return;
+		}
+		if (feature.isMany()) {
+			((List<Object>) target.eGet(feature)).add(value);
+		} else {
+			target.eSet(feature, value);
+		}
+	}
+
+	private static Object fromString(JsonParser parser, EDataType type) throws IOException {
+		try {
+			return EcoreUtil.createFromString(type, parser.getText());
+		} catch (RuntimeException e) {
+			throw new JsonParseException(parser, "Not a valid " + type.getName() + ": " + parser.getText(), e);
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package org.psoppc.fhir;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.hl7.fhir.StructureDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A FHIR NPM package (.tgz), as implementation guides are published.  The
+ * tarball is read in one streaming pass, keeping the bytes of the resources
+ * directly under {@code package/}, and the StructureDefinitions are indexed
+ * by canonical URL, id, file name, type and kind from
+ * {@code package/.index.json}.  A package without an index is indexed from
+ * the top-level properties of each file, which are read without parsing the
+ * rest.
+ * <p>
+ * Only the raw bytes of StructureDefinitions are kept.  One is parsed, to
+ * the {@link ProfileProjection}, only when it is asked for, so a package of
+ * thousands of resources costs one parse per profile used.
+ */
+public class NpmPackage {
+
+	private static final Logger log = LoggerFactory.getLogger(NpmPackage.class);
+
+	static final String PACKAGE_DIR = "package/";
+	static final String INDEX = ".index.json";
+	static final String MANIFEST = "package.json";
+	static final String STRUCTURE_DEFINITION = "StructureDefinition";
+
+	private static final int BLOCK = 512;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** One StructureDefinition of the package, as its index describes it. */
+	public record Entry(String filename, String id, String url, String version, String kind, String type) {}
+
+	private final String name;
+	private final String version;
+	private final String hash;
+	private final Map<String, byte[]> files;
+	private final Map<String, Entry> byUrl = new HashMap<>();
+	private final Map<String, Entry> byId = new HashMap<>();
+	private final Map<String, Entry> byFilename = new LinkedHashMap<>();
+	private final Map<String, List<Entry>> byType = new HashMap<>();
+	private final Map<String, List<Entry>> byKind = new HashMap<>();
+	private final AtomicInteger parsed = new AtomicInteger();
+	private final JsonProfileReader reader = new JsonProfileReader();
+
+	private NpmPackage(String name, String version, String hash, Map<String, byte[]> files, List<Entry> entries) {
+		this.name = name;
+		this.version = version;
+		this.hash = hash;
+		this.files = files;
+		for (Entry entry : entries) {
+			byFilename.put(entry.filename(), entry);
+			if (entry.id() != null) {
+				byId.putIfAbsent(entry.id(), entry);
+			}
+			if (entry.url() != null) {
+				byUrl.putIfAbsent(entry.url(), entry);
+				if (entry.version() != null) {
+					byUrl.putIfAbsent(entry.url() + "|" + entry.version(), entry);
+				}
+			}
+			if (entry.type() != null) {
+				byType.computeIfAbsent(entry.type(), k -> new ArrayList<>()).add(entry);
+			}
+			if (entry.kind() != null) {
+				byKind.computeIfAbsent(entry.kind(), k -> new ArrayList<>()).add(entry);
+			}
+		}
+	}
+
+	/** Opens a package by any name {@link Inputs} resolves. */
+	public static NpmPackage open(String name) throws IOException {
+		try (InputStream in = Inputs.open(name)) {
+			return read(in);
+		}
+	}
+
+	/** Reads a gzipped package tarball from {@code in}. */
+	public static NpmPackage read(InputStream in) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		DigestInputStream tarball = new DigestInputStream(in, digest);
+		Map<String, byte[]> files = new HashMap<>();
+		untar(new GZIPInputStream(tarball, BUFFER_SIZE), files);
+		tarball.transferTo(OutputStream.nullOutputStream());
+		String hash = HexFormat.of().formatHex(digest.digest());
+
+		String packageName = null;
+		String packageVersion = null;
+		ObjectMapper mapper = new ObjectMapper();
+		byte[] manifest = files.remove(MANIFEST);
+		if (manifest != null) {
+			JsonNode node = mapper.readTree(manifest);
+			packageName = node.path("name").asText(null);
+			packageVersion = node.path("version").asText(null);
+		}
+
+		List<Entry> entries = new ArrayList<>();
+		byte[] index = files.remove(INDEX);
+		if (index != null) {
+			for (JsonNode file : mapper.readTree(index).path("files")) {
+				if (STRUCTURE_DEFINITION.equals(file.path("resourceType").asText()) && files.containsKey(file.path("filename").asText())) {
+					entries.add(new Entry(file.path("filename").asText(), file.path("id").asText(null), file.path("url").asText(null),
+						file.path("version").asText(null), file.path("kind").asText(null), file.path("type").asText(null)));
+				}
+			}
+		} else {
+			log.debug("{} has no {}; indexing from file headers", packageName, INDEX);
+			JsonFactory factory = mapper.getFactory();
+			for (Map.Entry<String, byte[]> file : files.entrySet()) {
+				Entry entry = scan(factory, file.getKey(), file.getValue());
+				if (entry != null) {
+					entries.add(entry);
+				}
+			}
+			entries.sort((a, b) -> a.filename().compareTo(b.filename()));
+		}
+
+		Map<String, byte[]> profiles = new HashMap<>();
+		for (Entry entry : entries) {
+			profiles.put(entry.filename(), files.get(entry.filename()));
+		}
+		log.debug("{}#{}: {} StructureDefinition(s) of {} resource(s)", packageName, packageVersion, entries.size(), files.size());
+		return new NpmPackage(packageName, packageVersion, hash, profiles, entries);
+	}
+
+	/**
+	 * Reads the tar stream to its end, keeping the .json files directly
+	 * under {@value #PACKAGE_DIR} by their name within it.  Handles the ustar
+	 * prefix field, GNU long names and pax path records.
+	 */
+	static void untar(InputStream in, Map<String, byte[]> files) throws IOException {
+		byte[] header = new byte[BLOCK];
+		String longName = null;
+		while (readFully(in, header)) {
+			if (header[0] == 0) {
+				break;
+			}
+			String prefix = string(header, 345, 155);
+			String path = longName != null ? longName : prefix.isEmpty() ? string(header, 0, 100) : prefix + "/" + string(header, 0, 100);
+			longName = null;
+			long size = octal(header, 124, 12);
+			char type = (char) header[156];
+			boolean keep = type == '0' || type == 0;
+			String file = path.startsWith(PACKAGE_DIR) ? path.substring(PACKAGE_DIR.length()) : null;
+			if (type == 'L' || type == 'x' || keep && file != null && file.endsWith(".json") && file.indexOf('/') < 0) {
+				byte[] data = new byte[Math.toIntExact(size)];
+				if (!readFully(in, data)) {
+					throw new EOFException("Truncated tar entry " + path);
+				}
+				if (type == 'L') {
+					longName = new String(data, StandardCharsets.UTF_8).trim().replace("\0", "");
+				} else if (type == 'x') {
+					longName = paxPath(data);
+				} else {
+					files.put(file, data);
+				}
+				in.skipNBytes(padding(size));
+			} else {
+				in.skipNBytes(size + padding(size));
+			}
+		}
+	}
+
+	/** The path record of a pax extended header, or null. */
+	private static String paxPath(byte[] data) {
+		String records = new String(data, StandardCharsets.UTF_8);
+		int at = 0;
+		while (at < records.length()) {
+			int space = records.indexOf(' ', at);
+			if (space < 0) {
+				break;
+			}
+			int length = Integer.parseInt(records.substring(at, space));
+			String record = records.substring(space + 1, at + length - 1);
+			if (record.startsWith("path=")) {
+				return record.substring("path=".length());
+			}
+			at += length;
+		}
+		return null;
+	}
+
+	/** Reads resourceType, id, url, version, kind and type from the top level of a resource. */
+	private static Entry scan(JsonFactory factory, String filename, byte[] content) throws IOException {
+		Map<String, String> fields = new HashMap<>();
+		try (JsonParser parser = factory.createParser(content)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return null;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				if (parser.nextToken().isScalarValue()) {
+					fields.put(field, parser.getText());
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		if (!STRUCTURE_DEFINITION.equals(fields.get("resourceType"))) {
+			return null;
+		}
+		return new Entry(filename, fields.get("id"), fields.get("url"), fields.get("version"), fields.get("kind"), fields.get("type"));
+	}
+
+	private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+		int read = in.readNBytes(buffer, 0, buffer.length);
+		if (read == 0 && buffer.length > 0) {
+			return false;
+		}
+		if (read < buffer.length) {
+			throw new EOFException("Truncated tar stream");
+		}
+		return true;
+	}
+
+	private static long padding(long size) {
+		return (BLOCK - size % BLOCK) % BLOCK;
+	}
+
+	private static String string(byte[] header, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static long octal(byte[] header, int offset, int length) {
+		String digits = string(header, offset, length).trim();
+		return digits.isEmpty() ? 0 : Long.parseLong(digits, 8);
+	}
+
+	/**
+	 * The StructureDefinition named by canonical URL (optionally
+	 * {@code url|version}), id or file name, or null if the package has none.
+	 */
+	public Entry find(String key) {
+		Entry entry = byUrl.get(key);
+		if (entry == null) {
+			entry = byFilename.get(key);
+		}
+		if (entry == null) {
+			entry = byId.get(key);
+		}
+		return entry;
+	}
+
+	public List<Entry> byType(String type) {
+		return Collections.unmodifiableList(byType.getOrDefault(type, List.of()));
+	}
+
+	public List<Entry> byKind(String kind) {
+		return Collections.unmodifiableList(byKind.getOrDefault(kind, List.of()));
+	}
+
+	public List<Entry> entries() {
+		return List.copyOf(byFilename.values());
+	}
+
+	/** The raw JSON of {@code entry}. */
+	public ByteBuffer content(Entry entry) {
+		return ByteBuffer.wrap(files.get(entry.filename())).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Parses {@code entry}.  Nothing is cached here; {@link ProfileRegistry}
+	 * keeps the parsed profiles a run needs.
+	 */
+	public StructureDefinition structureDefinition(Entry entry) {
+		parsed.incrementAndGet();
+		try {
+			return reader.read(new ByteArrayInputStream(files.get(entry.filename())));
+		} catch (IOException e) {
+			throw new UncheckedIOException(name + ": " + entry.filename(), e);
+		}
+	}
+
+	/** How many times a StructureDefinition has been parsed. */
+	public int parsed() {
+		return parsed.get();
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public String version() {
+		return version;
+	}
+
+	/** The SHA-256 of the tarball, in hex. */
+	public String hash() {
+		return hash;
+	}
+}
@@ -0,0 +1,136 @@
+package org.psoppc.fhir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * Maps FHIR element paths (e.g. "AdverseEvent.actuality") to the spec EClass
+ * and EStructuralFeature they denote.  Built once per spec so that resolving
+ * a snapshot element is a single hash lookup.
+ * <p>
+ * Paths are indexed to full depth: a containment reference whose type is a
+ * BackboneElement (e.g. AdverseEvent.suspectEntity, typed
+ * AdverseEventSuspectEntity) is walked, so
+ * "AdverseEvent.suspectEntity.causality.assessment" resolves to the
+ * assessment feature owned by AdverseEventCausality.
+ * <p>
+ * Choice elements are modelled as one feature per type (Patient.deceased[x]
+ * becomes deceasedBoolean and deceasedDateTime).  A second table maps each
+ * choice path, e.g. "Patient.deceased[x]", to those typed variants.  A
+ * feature is taken as a variant when its name is a base name followed by
+ * the name of its own type.
+ */
+public class PathIndex {
+
+	public static final String CHOICE_SUFFIX = "[x]";
+
+	/** A resolved path; {@code feature} is null for a bare type path such as "AdverseEvent". */
+	public record Entry(EClass owner, EStructuralFeature feature) {}
+
+	private final EPackage spec;
+	private final EClass backboneElement;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final Map<String, List<Entry>> choices = new HashMap<>();
+
+	public PathIndex(EPackage spec) {
+		this.spec = spec;
+		this.backboneElement = (EClass) spec.getEClassifier("BackboneElement");
+		Set<EClass> visiting = new HashSet<>();
+		for (EClassifier classifier : spec.getEClassifiers()) {
+			if (classifier instanceof EClass eClass) {
+				entries.put(eClass.getName(), new Entry(eClass, null));
+				visiting.add(eClass);
+				index(eClass.getName(), eClass, visiting);
+				visiting.remove(eClass);
+			}
+		}
+	}
+
+	/**
+	 * Indexes the features of {@code eClass} under {@code prefix}, descending
+	 * into backbone types.  {@code visiting} holds the classes on the current
+	 * path so that recursive backbones (e.g. Questionnaire.item.item) stop.
+	 */
+	private void index(String prefix, EClass eClass, Set<EClass> visiting) {
+		for (EStructuralFeature feature : eClass.getEAllStructuralFeatures()) {
+			String path = prefix + "." + feature.getName();
+			Entry entry = new Entry(eClass, feature);
+			entries.put(path, entry);
+			String base = choiceBase(feature);
+			if (base != null) {
+				choices.computeIfAbsent(prefix + "." + base + CHOICE_SUFFIX, k -> new ArrayList<>()).add(entry);
+			}
+			EClass backbone = backboneType(feature);
+			if (backbone != null && visiting.add(backbone)) {
+				index(path, backbone, visiting);
+				visiting.remove(backbone);
+			}
+		}
+	}
+
+	/**
+	 * Returns the type of {@code feature} when it is a containment reference
+	 * to a BackboneElement subclass, otherwise null.
+	 */
+	public EClass backboneType(EStructuralFeature feature) {
+		if (backboneElement == null || !(feature instanceof EReference reference) || !reference.isContainment()) {
+			return null;
+		}
+		EClass type = reference.getEReferenceType();
+		if (type == null || type == backboneElement || !backboneElement.isSuperTypeOf(type)) {
+			return null;
+		}
+		return type;
+	}
+
+	/**
+	 * Returns the base of a choice variant ("deceased" for deceasedBoolean
+	 * typed Boolean), or null if {@code feature} is not one.
+	 */
+	static String choiceBase(EStructuralFeature feature) {
+		EClassifier type = feature.getEType();
+		if (type == null) {
+			return null;
+		}
+		String name = feature.getName();
+		String typeName = type.getName();
+		if (name == null || typeName == null) {
+			return null;
+		}
+		int baseLength = name.length() - typeName.length();
+		if (baseLength <= 0 || !name.endsWith(typeName) || !Character.isLowerCase(name.charAt(0))) {
+			return null;
+		}
+		return name.substring(0, baseLength);
+	}
+
+	/**
+	 * Returns the typed variants of a choice path such as
+	 * "AdverseEvent.occurrence[x]", or an empty list.
+	 */
+	public List<Entry> choice(String path) {
+		return choices.getOrDefault(path, List.of());
+	}
+
+	public EPackage getSpec() {
+		return spec;
+	}
+
+	public Entry get(String path) {
+		return entries.get(path);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+}
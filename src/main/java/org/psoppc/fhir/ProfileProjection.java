@@ -0,0 +1,42 @@
+package org.psoppc.fhir;
+
+import java.util.Set;
+
+import org.eclipse.emf.ecore.EClass;
+import org.hl7.fhir.FhirPackage;
+
+/**
+ * The parts of a StructureDefinition the profiler reads.  The profile
+ * readers materialize only these and skip everything else as they parse.
+ * <p>
+ * Of a StructureDefinition only the identifying fields, the snapshot and the
+ * differential are kept.  Of an ElementDefinition only the fields the
+ * profiler and {@link SliceEngine} use are kept, including fixed[x] and
+ * pattern[x] for slice discriminators.  The types inside these fields
+ * (slicing, binding, type ...) are small and are kept whole, except for
+ * extensions, which are dropped everywhere.
+ */
+final class ProfileProjection {
+
+	private static final Set<String> STRUCTURE_DEFINITION = Set.of("id", "url", "version", "name", "status", "kind",
+		"abstract", "type", "baseDefinition", "derivation", "snapshot", "differential");
+
+	private static final Set<String> ELEMENT_DEFINITION = Set.of("id", "path", "sliceName", "slicing", "short",
+		"definition", "min", "max", "type", "mustSupport", "binding");
+
+	private static final Set<String> NEVER = Set.of("extension", "modifierExtension");
+
+	private ProfileProjection() {
+	}
+
+	/** Whether the feature {@code name} of an instance of {@code owner} is materialized. */
+	static boolean includes(EClass owner, String name) {
+		if (owner == FhirPackage.eINSTANCE.getStructureDefinition()) {
+			return STRUCTURE_DEFINITION.contains(name);
+		}
+		if (owner == FhirPackage.eINSTANCE.getElementDefinition()) {
+			return ELEMENT_DEFINITION.contains(name) || name.startsWith("fixed") || name.startsWith("pattern");
+		}
+		return !NEVER.contains(name);
+	}
+}
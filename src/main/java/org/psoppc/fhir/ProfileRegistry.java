@@ -0,0 +1,149 @@
+package org.psoppc.fhir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.hl7.fhir.StructureDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parsed StructureDefinitions by canonical URL and version, so that a base
+ * profile shared by many derived profiles (US Core Patient under every
+ * QI-Core and UDS+ patient profile, say) is parsed once per run.
+ * <p>
+ * Profiles are cached under {@code url|version} in an LRU map of bounded
+ * size.  A bare URL stands for the version last seen for it.  On a miss the
+ * source is asked for the canonical, which it may resolve from the packages
+ * or files it knows, or answer with null.  Hits, misses and evictions are
+ * counted.  All methods are synchronized; the parse on a miss runs under the
+ * lock, so two threads asking for the same base do not both parse it.
+ */
+public class ProfileRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(ProfileRegistry.class);
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final Function<String, StructureDefinition> source;
+	private final Map<String, StructureDefinition> cache;
+	private final Map<String, String> versions = new HashMap<>();
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param capacity how many profiles to keep parsed
+	 * @param source parses the profile with a canonical URL (possibly
+	 *        {@code url|version}), or returns null if it has none
+	 */
+	public ProfileRegistry(int capacity, Function<String, StructureDefinition> source) {
+		this.source = source;
+		this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, StructureDefinition> eldest) {
+				if (size() > capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/** The profile with canonical {@code canonical} ({@code url} or {@code url|version}), or null. */
+	public synchronized StructureDefinition get(String canonical) {
+		String key = key(canonical);
+		StructureDefinition profile = cache.get(key);
+		if (profile != null) {
+			hits++;
+			return profile;
+		}
+		misses++;
+		profile = source.apply(canonical);
+		if (profile != null) {
+			put(profile);
+		}
+		return profile;
+	}
+
+	/** Registers a profile parsed elsewhere, e.g. one named on the command line. */
+	public synchronized void put(StructureDefinition profile) {
+		String url = url(profile);
+		if (url == null) {
+			return;
+		}
+		String version = version(profile);
+		if (version != null) {
+			versions.put(url, version);
+		}
+		cache.put(version == null ? url : url + "|" + version, profile);
+	}
+
+	/**
+	 * The bases of {@code profile} by baseDefinition, nearest first, as far
+	 * as the registry can resolve them.  The chain stops at the first base it
+	 * cannot resolve, which for a chain of profiles is the FHIR core type the
+	 * spec already describes.
+	 */
+	public List<StructureDefinition> bases(StructureDefinition profile) {
+		List<StructureDefinition> bases = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		seen.add(url(profile));
+		StructureDefinition current = profile;
+		while (current.getBaseDefinition() != null && current.getBaseDefinition().getValue() != null) {
+			String baseUrl = current.getBaseDefinition().getValue();
+			if (!seen.add(baseUrl.split("\\|")[0])) {
+				log.warn("Circular baseDefinition {} from {}", baseUrl, url(profile));
+				break;
+			}
+			StructureDefinition base = get(baseUrl);
+			if (base == null) {
+				break;
+			}
+			bases.add(base);
+			current = base;
+		}
+		return bases;
+	}
+
+	private String key(String canonical) {
+		if (canonical.indexOf('|') >= 0) {
+			return canonical;
+		}
+		String version = versions.get(canonical);
+		return version == null ? canonical : canonical + "|" + version;
+	}
+
+	private static String url(StructureDefinition profile) {
+		return profile.getUrl() == null ? null : profile.getUrl().getValue();
+	}
+
+	private static String version(StructureDefinition profile) {
+		return profile.getVersion() == null ? null : profile.getVersion().getValue();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	public synchronized int size() {
+		return cache.size();
+	}
+}
@@ -0,0 +1,103 @@
+package org.psoppc.fhir;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the profiler's units of work.  Record a
+ * build with {@code -XX:StartFlightRecording=filename=build.jfr} and the
+ * events appear under "PSOPPC" in JDK Mission Control, or via
+ * {@code jfr print --events org.psoppc.fhir.* build.jfr}.
+ * <p>
+ * Events are disabled unless a recording is running; callers only fill in
+ * fields when {@link Event#shouldCommit()} says the event will be kept.
+ */
+public final class ProfilerEvents {
+
+	private ProfilerEvents() {
+	}
+
+	@Name("org.psoppc.fhir.Element")
+	@Label("Element Definition")
+	@Description("One snapshot ElementDefinition resolved and applied by populateEcoreOut")
+	@Category("PSOPPC")
+	@StackTrace(false)
+	public static class ElementEvent extends Event {
+
+		@Label("Path")
+		String path;
+
+		@Label("Classifier")
+		String classifier;
+
+		@Label("Outcome")
+		@Description("applied, repeated, or the kind of resolution failure")
+		String outcome;
+	}
+
+	@Name("org.psoppc.fhir.CopyFeature")
+	@Label("Copy Feature")
+	@Description("A spec feature copied into the output package")
+	@Category("PSOPPC")
+	@StackTrace(false)
+	public static class CopyFeatureEvent extends Event {
+
+		@Label("Path")
+		String path;
+
+		@Label("Classifier")
+		String classifier;
+	}
+
+	@Name("org.psoppc.fhir.ApplySlice")
+	@Label("Apply Slice")
+	@Description("Slicing metadata of an element applied to an output feature")
+	@Category("PSOPPC")
+	@StackTrace(false)
+	public static class ApplySliceEvent extends Event {
+
+		@Label("Path")
+		String path;
+
+		@Label("Classifier")
+		String classifier;
+
+		@Label("Discriminators")
+		int discriminators;
+	}
+
+	@Name("org.psoppc.fhir.SerDeser")
+	@Label("FHIR SerDeser")
+	@Description("A spec or profile loaded, or an output package saved")
+	@Category("PSOPPC")
+	@StackTrace(false)
+	public static class SerDeserEvent extends Event {
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Format")
+		String format;
+
+		@Label("Path")
+		@Description("The file, URI or resource read or written")
+		String path;
+
+		@Label("Classifier")
+		@Description("Package name, or the type a profile constrains")
+		String classifier;
+	}
+
+	static SerDeserEvent serDeser(String operation, String format, String path) {
+		SerDeserEvent event = new SerDeserEvent();
+		event.operation = operation;
+		event.format = format;
+		event.path = path;
+		event.begin();
+		return event;
+	}
+}
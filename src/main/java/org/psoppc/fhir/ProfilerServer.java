@@ -0,0 +1,132 @@
+package org.psoppc.fhir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers profile transformation jobs against a spec that stays loaded, so a
+ * job costs only the transformation rather than JVM start and spec parse.
+ * <p>
+ * The protocol is line based.  A request is one line of whitespace separated
+ * profile names, resolved as for -p.  The reply is {@code OK <n> <issues>}
+ * followed by the {@code n} bytes of the generated UTF-8 ecore, where
+ * {@code issues} counts the diagnostics of that job alone, or
+ * {@code ERR <message>}.  {@code QUIT} or end of input ends the session.
+ * <p>
+ * Sessions run concurrently, but jobs run one at a time: the profiler's
+ * lazily built indexes and its diagnostics belong to one job while it runs.
+ * A job may still use several threads of its own with -t.  Each job reads
+ * its profiles afresh, so an edited profile or base is picked up, and its
+ * ecore is written with the profiler's --gzip and --canonical settings.
+ */
+public class ProfilerServer {
+
+	private static final Logger log = LoggerFactory.getLogger(ProfilerServer.class);
+
+	private final AHRQProfiler profiler;
+	private final EPackage spec;
+	private final Object jobs = new Object();
+
+	/** The generated ecore of one job and the number of issues met producing it. */
+	record Result(byte[] ecore, long issues) {}
+
+	public ProfilerServer(AHRQProfiler profiler, EPackage spec) {
+		this.profiler = profiler;
+		this.spec = spec;
+		profiler.warmUp(spec);
+	}
+
+	/** Serves one session on the given streams. */
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			if ("QUIT".equals(line)) {
+				break;
+			}
+			reply(line, out);
+		}
+		out.flush();
+	}
+
+	/** Accepts connections on the loopback interface, one session each, until the process ends. */
+	public void listen(int port, int parallelism) throws IOException {
+		ExecutorService sessions = Executors.newFixedThreadPool(parallelism);
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			log.info("Listening on {}", server.getLocalSocketAddress());
+			while (true) {
+				Socket socket = server.accept();
+				sessions.execute(() -> {
+					try (socket) {
+						serve(socket.getInputStream(), socket.getOutputStream());
+					} catch (IOException e) {
+						log.warn("Session failed", e);
+					}
+				});
+			}
+		} finally {
+			sessions.shutdown();
+		}
+	}
+
+	void reply(String request, OutputStream out) throws IOException {
+		Result result;
+		try {
+			result = transform(Arrays.asList(request.split("\\s+")));
+		} catch (RuntimeException e) {
+			log.error("Job failed: {}", request, e);
+			String message = String.valueOf(e.getMessage()).replaceAll("\\s+", " ");
+			out.write(("ERR " + message + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			return;
+		}
+		out.write(("OK " + result.ecore().length + " " + result.issues() + "\n").getBytes(StandardCharsets.UTF_8));
+		out.write(result.ecore());
+		out.flush();
+	}
+
+	/** Runs one job from fresh profiles, logging the summary of its diagnostics and clearing them for the next. */
+	Result transform(List<String> names) {
+		EPackage out;
+		long issues;
+		synchronized (jobs) {
+			Diagnostics diagnostics = profiler.diagnostics();
+			diagnostics.clear();
+			profiler.forgetProfiles();
+			try {
+				out = profiler.profileAll(spec, AHRQProfiler.expand(names));
+				issues = diagnostics.total();
+				diagnostics.logSummary();
+			} finally {
+				diagnostics.clear();
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			profiler.write(out, bytes);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return new Result(bytes.toByteArray(), issues);
+	}
+}
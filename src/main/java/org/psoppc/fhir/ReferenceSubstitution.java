@@ -0,0 +1,219 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.eclipse.emf.common.util.EMap;
+import org.eclipse.emf.ecore.EAnnotation;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.hl7.fhir.StructureDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Points Reference-typed features at the profiles AHRQ accepts, e.g.
+ * AdverseEvent.subject at the de-identified UDS+ Patient instead of
+ * qicore-patient.
+ * <p>
+ * The table maps a target, either a canonical URL or a resource type name,
+ * to a replacement profile given as a canonical URL or as a profile that
+ * {@link Inputs} can open.  A feature's targets are the targetProfile URLs
+ * the profiler recorded in its {@code http://hl7.org/fhir} annotation.
+ * Substituted targets are written back there, and an annotation with source
+ * {@value #TARGET_PROFILE_URL} maps each original URL to its replacement
+ * and references the replacement's EClass in the output.  The feature keeps
+ * its Reference type, so the output still describes FHIR instances.
+ * <p>
+ * Each distinct target is resolved once; every other feature naming it
+ * reuses the result.
+ */
+public class ReferenceSubstitution {
+
+	private static final Logger log = LoggerFactory.getLogger(ReferenceSubstitution.class);
+
+	public static final String TARGET_PROFILE_URL = "http://hl7.org/fhir/targetProfile";
+	public static final String TARGET_PROFILE_KEY = "targetProfile";
+	static final String CORE_PROFILE_PREFIX = "http://hl7.org/fhir/StructureDefinition/";
+
+	/** A replacement profile and the class standing for it. */
+	public record Target(String url, EClass eClass) {}
+
+	private final Map<String, String> table;
+	private final Function<String, String> typeOfProfile;
+	private final Function<String, StructureDefinition> loader;
+	private final Map<String, Optional<Target>> resolved = new HashMap<>();
+	private int resolutions;
+
+	/**
+	 * @param typeOfProfile the resource type a canonical URL constrains, if
+	 *        known (e.g. from profiles already loaded), otherwise null
+	 * @param loader loads a replacement given as a profile name
+	 */
+	public ReferenceSubstitution(Map<String, String> table, Function<String, String> typeOfProfile,
+			Function<String, StructureDefinition> loader) {
+		this.table = table;
+		this.typeOfProfile = typeOfProfile;
+		this.loader = loader;
+	}
+
+	/**
+	 * Reads a table of one {@code target replacement} pair per line; blank
+	 * lines and lines starting with # are skipped.
+	 */
+	public static Map<String, String> readTable(Path file) throws IOException {
+		Map<String, String> table = new LinkedHashMap<>();
+		for (String line : Files.readAllLines(file)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] parts = line.split("\\s+");
+			if (parts.length != 2) {
+				throw new IOException(file + ": expected 'target replacement': " + line);
+			}
+			table.put(parts[0], parts[1]);
+		}
+		return table;
+	}
+
+	/**
+	 * Substitutes the targets of every Reference-typed feature in {@code out}.
+	 *
+	 * @return the number of features retargeted
+	 */
+	public int apply(EPackage out, EPackage spec) {
+		EClass reference = (EClass) spec.getEClassifier("Reference");
+		int retargeted = 0;
+		for (EClassifier classifier : out.getEClassifiers()) {
+			if (!(classifier instanceof EClass eClass)) {
+				continue;
+			}
+			for (EStructuralFeature feature : eClass.getEStructuralFeatures()) {
+				if (feature instanceof EReference ref && ref.getEReferenceType() != null
+						&& reference != null && reference.isSuperTypeOf(ref.getEReferenceType())
+						&& retarget(ref, out, spec)) {
+					retargeted++;
+				}
+			}
+		}
+		log.debug("Retargeted {} reference(s) using {} resolution(s)", retargeted, resolutions);
+		return retargeted;
+	}
+
+	private boolean retarget(EReference feature, EPackage out, EPackage spec) {
+		EAnnotation fhir = feature.getEAnnotation(AHRQProfiler.HL7_FHIR_URL);
+		String targets = fhir == null ? null : fhir.getDetails().get(TARGET_PROFILE_KEY);
+		if (targets == null) {
+			return false;
+		}
+		Set<String> substituted = new LinkedHashSet<>();
+		List<Target> replacements = new ArrayList<>();
+		Map<String, String> originals = new LinkedHashMap<>();
+		for (String url : targets.split(" ")) {
+			Optional<Target> target = resolve(url, out, spec);
+			if (target.isPresent()) {
+				substituted.add(target.get().url());
+				replacements.add(target.get());
+				originals.put(url, target.get().url());
+			} else {
+				substituted.add(url);
+			}
+		}
+		if (replacements.isEmpty()) {
+			return false;
+		}
+		fhir.getDetails().put(TARGET_PROFILE_KEY, String.join(" ", substituted));
+
+		EAnnotation annotation = feature.getEAnnotation(TARGET_PROFILE_URL);
+		if (annotation == null) {
+			annotation = EcoreFactory.eINSTANCE.createEAnnotation();
+			annotation.setSource(TARGET_PROFILE_URL);
+			feature.getEAnnotations().add(annotation);
+		}
+		EMap<String, String> details = annotation.getDetails();
+		originals.forEach(details::put);
+		for (Target target : replacements) {
+			if (target.eClass() != null && !annotation.getReferences().contains(target.eClass())) {
+				annotation.getReferences().add(target.eClass());
+			}
+		}
+		return true;
+	}
+
+	/** Resolves {@code url} once per engine; later calls return the memoized result. */
+	Optional<Target> resolve(String url, EPackage out, EPackage spec) {
+		Optional<Target> target = resolved.get(url);
+		if (target == null) {
+			resolutions++;
+			target = Optional.ofNullable(lookup(url, out, spec));
+			resolved.put(url, target);
+		}
+		return target;
+	}
+
+	private Target lookup(String url, EPackage out, EPackage spec) {
+		String replacement = table.get(url);
+		if (replacement == null) {
+			String type = typeOf(url);
+			replacement = type == null ? null : table.get(type);
+		}
+		if (replacement == null) {
+			return null;
+		}
+		String replacementUrl = replacement;
+		String type = null;
+		if (isCanonical(replacement)) {
+			type = typeOf(replacement);
+		} else {
+			// A file name or package id: the profile's own url goes in the output
+			try {
+				StructureDefinition profile = loader.apply(replacement);
+				replacementUrl = profile.getUrl().getValue();
+				type = profile.getType().getValue();
+			} catch (RuntimeException e) {
+				log.warn("Replacement profile {} could not be loaded; its class is unknown", replacement, e);
+			}
+		}
+		return new Target(replacementUrl, type == null ? null : classFor(type, out, spec));
+	}
+
+	/** Canonical URLs name profiles; they are not fetched. */
+	private static boolean isCanonical(String name) {
+		return name.startsWith("http://") || name.startsWith("https://");
+	}
+
+	private String typeOf(String url) {
+		if (url.startsWith(CORE_PROFILE_PREFIX)) {
+			return url.substring(CORE_PROFILE_PREFIX.length());
+		}
+		return typeOfProfile.apply(url);
+	}
+
+	/** The output's class for {@code type} if a profile populated it, else the spec's. */
+	private static EClass classFor(String type, EPackage out, EPackage spec) {
+		EClassifier classifier = out.getEClassifier(type);
+		if (classifier == null) {
+			classifier = spec.getEClassifier(type);
+		}
+		return classifier instanceof EClass eClass ? eClass : null;
+	}
+
+	public int resolutions() {
+		return resolutions;
+	}
+}
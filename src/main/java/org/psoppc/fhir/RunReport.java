@@ -0,0 +1,148 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Per-phase wall time, CPU time, allocation and retained heap for one run,
+ * written as JSON next to the output ecore.
+ * <p>
+ * Wall time, CPU time and allocation are measured on the thread running the
+ * phase and summed over every occurrence, so phases that run once per
+ * profile or per element (and those run on worker threads) add up.  Nested
+ * phases are included in their parents' figures.  Retained heap is the heap
+ * in use after a full GC, sampled between top-level phases.
+ */
+public class RunReport {
+
+	/** A report that measures nothing; the default when --report is off. */
+	public static final RunReport NONE = new RunReport(false);
+
+	private static final Timing NO_TIMING = () -> { };
+
+	/** Closing a timing adds the measured interval to its phase. */
+	public interface Timing extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	static class Phase {
+		long count;
+		long wallNanos;
+		long cpuNanos;
+		long allocatedBytes;
+		long retainedHeapBytes = -1;
+	}
+
+	private final boolean enabled;
+	private final Map<String, Phase> phases = new LinkedHashMap<>();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private RunReport(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public static RunReport create() {
+		return new RunReport(true);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public Timing start(String name) {
+		if (!enabled) {
+			return NO_TIMING;
+		}
+		long wall = System.nanoTime();
+		long cpu = threads.getCurrentThreadCpuTime();
+		long allocated = allocatedBytes();
+		return () -> {
+			long wallNanos = System.nanoTime() - wall;
+			long cpuNanos = threads.getCurrentThreadCpuTime() - cpu;
+			long allocatedBytes = allocatedBytes() - allocated;
+			synchronized (phases) {
+				Phase phase = phases.computeIfAbsent(name, k -> new Phase());
+				phase.count++;
+				phase.wallNanos += wallNanos;
+				phase.cpuNanos += cpuNanos;
+				phase.allocatedBytes += allocatedBytes;
+			}
+		};
+	}
+
+	/** Runs {@code phase}, measured as {@code name}. */
+	public void time(String name, Runnable phase) {
+		Timing timing = start(name);
+		try {
+			phase.run();
+		} finally {
+			timing.close();
+		}
+	}
+
+	/** Runs {@code phase}, measured as {@code name}, and returns its result. */
+	public <T> T time(String name, Supplier<T> phase) {
+		Timing timing = start(name);
+		try {
+			return phase.get();
+		} finally {
+			timing.close();
+		}
+	}
+
+	/** Records the heap retained after {@code name} finished; forces a GC. */
+	public void sampleHeap(String name) {
+		if (!enabled) {
+			return;
+		}
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		synchronized (phases) {
+			phases.computeIfAbsent(name, k -> new Phase()).retainedHeapBytes = used;
+		}
+	}
+
+	private long allocatedBytes() {
+		if (threads instanceof com.sun.management.ThreadMXBean sun) {
+			return sun.getCurrentThreadAllocatedBytes();
+		}
+		return 0;
+	}
+
+	Map<String, Object> toMap() {
+		List<Map<String, Object>> list = new ArrayList<>();
+		synchronized (phases) {
+			for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+				Phase phase = entry.getValue();
+				Map<String, Object> item = new LinkedHashMap<>();
+				item.put("name", entry.getKey());
+				item.put("count", phase.count);
+				item.put("wallNanos", phase.wallNanos);
+				item.put("cpuNanos", phase.cpuNanos);
+				item.put("allocatedBytes", phase.allocatedBytes);
+				if (phase.retainedHeapBytes >= 0) {
+					item.put("retainedHeapBytes", phase.retainedHeapBytes);
+				}
+				list.add(item);
+			}
+		}
+		Map<String, Object> report = new LinkedHashMap<>();
+		report.put("phases", list);
+		return report;
+	}
+
+	public void write(Path target) throws IOException {
+		new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(target.toFile(), toMap());
+	}
+}
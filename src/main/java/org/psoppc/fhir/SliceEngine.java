@@ -0,0 +1,225 @@
+package org.psoppc.fhir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import org.eclipse.emf.ecore.EAnnotation;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.hl7.fhir.Canonical;
+import org.hl7.fhir.ElementDefinition;
+import org.hl7.fhir.ElementDefinitionDiscriminator;
+import org.hl7.fhir.ElementDefinitionType;
+
+/**
+ * Turns the named slices of one profile (elements with a sliceName, e.g.
+ * Patient.extension:uds-plus-race) into features of their own, beside the
+ * sliced feature.
+ * <p>
+ * The elements are indexed once by id, and each sliced path's discriminators
+ * once by path, so the value a slice is discriminated by (the fixed url of
+ * an extension slice, say) is found with hash lookups rather than by
+ * scanning the profile.  Values are collected in a table keyed by sliced
+ * path and by discriminator type and path, which {@link #sliceFor} answers
+ * in constant time.  A slice whose every discriminator value already
+ * belongs to one earlier slice cannot be told apart from it, and is
+ * reported as {@link Diagnostics.Category#DUPLICATE_SLICE}.
+ */
+public class SliceEngine {
+
+	public static final String SLICE_URL = "http://hl7.org/fhir/slice";
+
+	/** One slicing discriminator, e.g. value:url. */
+	public record Discriminator(String type, String path) {
+		@Override
+		public String toString() {
+			return type + ":" + path;
+		}
+	}
+
+	private final Map<String, ElementDefinition> elementsById = new HashMap<>();
+	private final Map<String, List<Discriminator>> discriminatorsByPath = new HashMap<>();
+	private final Map<String, Map<Discriminator, Map<String, String>>> slicesByValue = new HashMap<>();
+	private final Diagnostics diagnostics;
+
+	public SliceEngine(List<ElementDefinition> elements) {
+		this(elements, new Diagnostics());
+	}
+
+	/** Where elements share an id (a profile's and its base's), the first is used. */
+	public SliceEngine(List<ElementDefinition> elements, Diagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+		for (ElementDefinition elem : elements) {
+			if (elem.getId() != null) {
+				elementsById.putIfAbsent(elem.getId(), elem);
+			}
+			if (elem.getSlicing() != null && elem.getSliceName() == null && elem.getPath() != null) {
+				List<Discriminator> discriminators = new ArrayList<>();
+				for (ElementDefinitionDiscriminator discriminator : elem.getSlicing().getDiscriminator()) {
+					discriminators.add(new Discriminator(discriminator.getType().getValue().getLiteral(), discriminator.getPath().getValue()));
+				}
+				discriminatorsByPath.putIfAbsent(elem.getPath().getValue(), discriminators);
+			}
+		}
+	}
+
+	/** The feature name for a slice: the sliced feature's name, "_", and the slice name as an identifier. */
+	public static String featureName(String slicedFeature, String sliceName) {
+		StringBuilder name = new StringBuilder(slicedFeature).append('_');
+		for (char c : sliceName.toCharArray()) {
+			name.append(Character.isLetterOrDigit(c) ? c : '_');
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Records the slice's discriminator values and annotates its feature with
+	 * the slice name, the sliced feature and each discriminator's value.
+	 */
+	public void annotate(ElementDefinition slice, EStructuralFeature sliceFeature, String slicedFeature) {
+		String sliceName = slice.getSliceName().getValue();
+		EAnnotation annotation = EcoreFactory.eINSTANCE.createEAnnotation();
+		annotation.setSource(SLICE_URL);
+		annotation.getDetails().put("sliceName", sliceName);
+		annotation.getDetails().put("slicedFeature", slicedFeature);
+		int index = 0;
+		for (Map.Entry<Discriminator, String> value : values(slice).entrySet()) {
+			annotation.getDetails().put("discriminator:" + index, value.getKey() + "=" + value.getValue());
+			index++;
+		}
+		sliceFeature.getEAnnotations().add(annotation);
+	}
+
+	/**
+	 * Resolves, and records for {@link #sliceFor}, the discriminator values of
+	 * {@code slice}, reporting it if an earlier slice has the same values.
+	 */
+	Map<Discriminator, String> values(ElementDefinition slice) {
+		String slicedPath = slice.getPath().getValue();
+		String sliceName = slice.getSliceName().getValue();
+		List<Discriminator> discriminators = discriminatorsByPath.getOrDefault(slicedPath, List.of());
+		Map<Discriminator, String> values = new LinkedHashMap<>();
+		for (Discriminator discriminator : discriminators) {
+			String value = value(slice, discriminator);
+			if (value != null) {
+				values.put(discriminator, value);
+			}
+		}
+		String duplicate = values.size() == discriminators.size() ? duplicateOf(slicedPath, values, sliceName) : null;
+		if (duplicate != null) {
+			diagnostics.report(Diagnostics.Category.DUPLICATE_SLICE, slicedPath + ":" + sliceName, "same discriminator values as " + duplicate);
+		}
+		values.forEach((discriminator, value) -> slicesByValue.computeIfAbsent(slicedPath, k -> new HashMap<>())
+			.computeIfAbsent(discriminator, k -> new HashMap<>())
+			.putIfAbsent(value, sliceName));
+		return values;
+	}
+
+	/** The one earlier slice that has every one of {@code values}, or null. */
+	private String duplicateOf(String slicedPath, Map<Discriminator, String> values, String sliceName) {
+		String other = null;
+		for (Map.Entry<Discriminator, String> value : values.entrySet()) {
+			String owner = sliceFor(slicedPath, value.getKey(), value.getValue());
+			if (owner == null || owner.equals(sliceName) || other != null && !other.equals(owner)) {
+				return null;
+			}
+			other = owner;
+		}
+		return other;
+	}
+
+	/** Returns the name of the slice of {@code slicedPath} whose discriminator has {@code value}, or null. */
+	public String sliceFor(String slicedPath, Discriminator discriminator, String value) {
+		return slicesByValue.getOrDefault(slicedPath, Map.of()).getOrDefault(discriminator, Map.of()).get(value);
+	}
+
+	private String value(ElementDefinition slice, Discriminator discriminator) {
+		ElementDefinition target = "$this".equals(discriminator.path())
+			? slice
+			: elementsById.get(slice.getId() + "." + discriminator.path());
+		switch (discriminator.type()) {
+		case "value":
+		case "pattern":
+			if (target != null) {
+				String value = fixedOrPattern(target);
+				if (value != null) {
+					return value;
+				}
+			}
+			// An extension slice fixes its url through the extension's profile
+			return "url".equals(discriminator.path()) ? profiles(slice) : null;
+		case "type":
+			return target == null ? null : types(target);
+		case "profile":
+			return target == null ? null : profiles(target);
+		case "exists":
+			return target == null || target.getMin() == null || target.getMin().getValue() == null ? null
+				: String.valueOf(target.getMin().getValue().signum() > 0);
+		default:
+			return null;
+		}
+	}
+
+	/** The value of the element's fixed[x] or pattern[x], whichever is set. */
+	static String fixedOrPattern(ElementDefinition elem) {
+		for (EStructuralFeature feature : elem.eClass().getEAllStructuralFeatures()) {
+			String name = feature.getName();
+			if ((name.startsWith("fixed") || name.startsWith("pattern")) && elem.eIsSet(feature)
+					&& elem.eGet(feature) instanceof EObject value) {
+				return describe(value);
+			}
+		}
+		return null;
+	}
+
+	/** A primitive's value, or the values set in a complex type joined by "|" (e.g. system|code). */
+	static String describe(EObject value) {
+		EStructuralFeature primitive = value.eClass().getEStructuralFeature("value");
+		if (primitive != null && value.eIsSet(primitive)) {
+			return String.valueOf(value.eGet(primitive));
+		}
+		StringJoiner parts = new StringJoiner("|");
+		for (EStructuralFeature feature : value.eClass().getEAllStructuralFeatures()) {
+			if (value.eIsSet(feature)) {
+				Object part = value.eGet(feature);
+				if (part instanceof EObject child) {
+					parts.add(describe(child));
+				} else if (part instanceof List<?> list) {
+					for (Object item : list) {
+						if (item instanceof EObject child) {
+							parts.add(describe(child));
+						}
+					}
+				}
+			}
+		}
+		return parts.length() == 0 ? null : parts.toString();
+	}
+
+	private static String types(ElementDefinition elem) {
+		StringJoiner codes = new StringJoiner(" ");
+		for (ElementDefinitionType type : elem.getType()) {
+			if (type.getCode() != null && type.getCode().getValue() != null) {
+				codes.add(type.getCode().getValue());
+			}
+		}
+		return codes.length() == 0 ? null : codes.toString();
+	}
+
+	private static String profiles(ElementDefinition elem) {
+		StringJoiner profiles = new StringJoiner(" ");
+		for (ElementDefinitionType type : elem.getType()) {
+			for (Canonical profile : type.getProfile()) {
+				if (profile.getValue() != null) {
+					profiles.add(profile.getValue());
+				}
+			}
+		}
+		return profiles.length() == 0 ? null : profiles.toString();
+	}
+}
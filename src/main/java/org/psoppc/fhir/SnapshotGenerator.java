@@ -0,0 +1,537 @@
+package org.psoppc.fhir;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.emf.common.util.EList;
+import org.eclipse.emf.ecore.EAnnotation;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EEnum;
+import org.eclipse.emf.ecore.EModelElement;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.hl7.fhir.DiscriminatorTypeEnum;
+import org.hl7.fhir.ElementDefinition;
+import org.hl7.fhir.ElementDefinitionDiscriminator;
+import org.hl7.fhir.ElementDefinitionSlicing;
+import org.hl7.fhir.ElementDefinitionType;
+import org.hl7.fhir.FhirFactory;
+import org.hl7.fhir.FhirPackage;
+import org.hl7.fhir.SlicingRulesEnum;
+import org.hl7.fhir.StructureDefinition;
+import org.hl7.fhir.StructureDefinitionSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates the snapshot of a differential-only profile by applying its
+ * differential to the snapshot of its base.
+ * <p>
+ * A base is resolved through the {@link ProfileRegistry}.  A base with a
+ * snapshot is used as is, and a differential-only base is generated first, in
+ * turn.  A FHIR core base
+ * ({@code http://hl7.org/fhir/StructureDefinition/<Type>}), which no package
+ * need supply, is synthesized from the spec class: an element per feature
+ * (choice variants folded back into one {@code [x]} element), backbone
+ * children included, bounds from the feature and {@code short} from its
+ * documentation.  Each base is expanded once per generator, so a family of
+ * profiles on a common base pays for the base once.
+ * <p>
+ * Differential elements are matched to base elements by id.  A slice is
+ * added after the sliced element and its existing slices, with its own copy
+ * of the sliced element's children (Observation.component:systolic.code),
+ * and a path below a
+ * datatype (Patient.address.postalCode) unfolds that datatype's children from
+ * the spec, as the published snapshots do.  The set properties of the
+ * differential element replace those of the base element, and a sliced
+ * element's min is raised to the sum of its slices' mins.
+ */
+public class SnapshotGenerator {
+
+	private static final Logger log = LoggerFactory.getLogger(SnapshotGenerator.class);
+
+	static final String SYSTEM_STRING = "http://hl7.org/fhirpath/System.String";
+	static final String DOCUMENTATION_SOURCE = "http://www.eclipse.org/emf/2002/GenModel";
+
+	private static final EClass ELEMENT_DEFINITION = FhirPackage.eINSTANCE.getElementDefinition();
+	private static final Set<EStructuralFeature> KEYS = Set.of(
+		ELEMENT_DEFINITION.getEStructuralFeature("id"), ELEMENT_DEFINITION.getEStructuralFeature("path"));
+	/** Properties a differential adds to rather than replaces. */
+	private static final Set<EStructuralFeature> ADDITIVE = Set.of(
+		ELEMENT_DEFINITION.getEStructuralFeature("constraint"), ELEMENT_DEFINITION.getEStructuralFeature("condition"),
+		ELEMENT_DEFINITION.getEStructuralFeature("mapping"));
+
+	private final PathIndex index;
+	private final ProfileRegistry registry;
+	private final Map<String, List<ElementDefinition>> expanded = new HashMap<>();
+	private final Set<String> expanding = new HashSet<>();
+	private int expansions;
+
+	public SnapshotGenerator(PathIndex index, ProfileRegistry registry) {
+		this.index = index;
+		this.registry = registry;
+	}
+
+	/**
+	 * The snapshot of {@code profile}, or null if its base cannot be
+	 * resolved.  The profile is not modified.
+	 */
+	public synchronized StructureDefinitionSnapshot generate(StructureDefinition profile) {
+		List<ElementDefinition> elements = expand(profile);
+		if (elements == null) {
+			return null;
+		}
+		StructureDefinitionSnapshot snapshot = FhirFactory.eINSTANCE.createStructureDefinitionSnapshot();
+		snapshot.getElement().addAll(EcoreUtil.copyAll(elements));
+		return snapshot;
+	}
+
+	public EPackage getSpec() {
+		return index.getSpec();
+	}
+
+	/** How many bases have been expanded, i.e. generated or synthesized. */
+	public synchronized int expansions() {
+		return expansions;
+	}
+
+	/** The snapshot elements of {@code profile} applied to its base, or null. */
+	private List<ElementDefinition> expand(StructureDefinition profile) {
+		String baseUrl = value(profile.getBaseDefinition());
+		String type = value(profile.getType());
+		List<ElementDefinition> base = baseUrl == null ? null : base(baseUrl, type);
+		if (base == null) {
+			log.warn("Cannot generate a snapshot for {}: base {} not resolved", value(profile.getUrl()), baseUrl);
+			return null;
+		}
+		Merge merge = new Merge(EcoreUtil.copyAll(base));
+		if (profile.getDifferential() != null) {
+			for (ElementDefinition elem : profile.getDifferential().getElement()) {
+				merge.apply(elem);
+			}
+		}
+		merge.sumSliceMins();
+		return merge.elements();
+	}
+
+	/** The memoized snapshot elements of base {@code url} of type {@code type}, or null. */
+	private List<ElementDefinition> base(String url, String type) {
+		List<ElementDefinition> elements = expanded.get(url);
+		if (elements != null) {
+			return elements;
+		}
+		if (!expanding.add(url)) {
+			log.warn("Circular baseDefinition {}", url);
+			return null;
+		}
+		try {
+			StructureDefinition base = registry.get(url);
+			if (base != null && type != null && !type.equals(value(base.getType()))) {
+				log.warn("Base {} constrains {}, not {}", url, value(base.getType()), type);
+				return null;
+			}
+			if (base != null && base.getSnapshot() != null && !base.getSnapshot().getElement().isEmpty()) {
+				elements = base.getSnapshot().getElement();
+			} else if (base != null) {
+				elements = expand(base);
+				expansions++;
+			} else if (url.equals(ReferenceSubstitution.CORE_PROFILE_PREFIX + type)
+					&& index.getSpec().getEClassifier(type) instanceof EClass eClass) {
+				elements = synthesize(eClass);
+				expansions++;
+				log.debug("Synthesized {} base elements for {} from the spec", elements.size(), url);
+			}
+			if (elements != null) {
+				expanded.put(url, elements);
+			}
+			return elements;
+		} finally {
+			expanding.remove(url);
+		}
+	}
+
+	/** The snapshot of core type {@code type}: its root and every feature, to backbone depth. */
+	List<ElementDefinition> synthesize(EClass type) {
+		List<ElementDefinition> elements = new ArrayList<>();
+		ElementDefinition root = element(type.getName(), type.getName(), 0, -1, documentation(type));
+		elements.add(root);
+		Set<EClass> visiting = new HashSet<>();
+		visiting.add(type);
+		children(type, type.getName(), type.getName(), false, true, elements, visiting);
+		return elements;
+	}
+
+	/**
+	 * Adds an element for each feature of {@code owner} under {@code id} and
+	 * {@code path}.  Choice variants share one element.  {@code datatype}
+	 * gives the extension elements the default slicing by url, as datatype
+	 * snapshots have it; {@code backbones} descends into backbone types.
+	 */
+	private void children(EClass owner, String id, String path, boolean datatype, boolean backbones,
+			List<ElementDefinition> elements, Set<EClass> visiting) {
+		List<EStructuralFeature> features = new ArrayList<>(owner.getEAllStructuralFeatures());
+		features.sort(Comparator.comparingInt(SnapshotGenerator::rank));
+		Map<String, ElementDefinition> choices = new HashMap<>();
+		Map<String, Integer> variants = new HashMap<>();
+		for (EStructuralFeature feature : features) {
+			String base = PathIndex.choiceBase(feature);
+			if (base != null) {
+				variants.merge(base, 1, Integer::sum);
+			}
+		}
+		for (EStructuralFeature feature : features) {
+			String base = PathIndex.choiceBase(feature);
+			boolean choice = base != null && variants.get(base) > 1;
+			String name = choice ? base + PathIndex.CHOICE_SUFFIX : feature.getName();
+			ElementDefinition elem = choices.get(name);
+			if (elem == null) {
+				elem = element(id + "." + name, path + "." + name, choice ? 0 : feature.getLowerBound(),
+					feature.getUpperBound(), documentation(feature));
+				elements.add(elem);
+				if (choice) {
+					choices.put(name, elem);
+				}
+				if (datatype && "extension".equals(name)) {
+					elem.setSlicing(extensionSlicing());
+				}
+			}
+			elem.getType().add(type(typeCode(feature, choice ? feature.getName().substring(base.length()) : null)));
+
+			EClass backbone = backbones ? index.backboneType(feature) : null;
+			if (backbone != null && visiting.add(backbone)) {
+				children(backbone, elem.getId(), path + "." + name, false, true, elements, visiting);
+				visiting.remove(backbone);
+			}
+		}
+	}
+
+	/**
+	 * Where FHIR orders a feature among its siblings.  The model declares
+	 * Element.extension before id, and XML attributes such as Extension.url
+	 * after the elements, so id comes first, then the extensions Element
+	 * declares, then attributes other than a primitive's value, then the rest
+	 * in model order.
+	 */
+	private static int rank(EStructuralFeature feature) {
+		if ("id".equals(feature.getName())) {
+			return 0;
+		}
+		if ("Element".equals(feature.getEContainingClass().getName())) {
+			return 1;
+		}
+		return feature instanceof EAttribute && !"value".equals(feature.getName()) ? 2 : 3;
+	}
+
+	/**
+	 * The FHIR type code of {@code feature}: System.String for an id (an
+	 * attribute on elements, a String on resources), the decapitalized name of a primitive type, "code" for a
+	 * coded primitive, BackboneElement for a backbone and otherwise the type
+	 * name.  A choice variant's type is taken from its {@code suffix}.
+	 */
+	private String typeCode(EStructuralFeature feature, String suffix) {
+		if (feature instanceof EAttribute || "id".equals(feature.getName())) {
+			return SYSTEM_STRING;
+		}
+		if (index.backboneType(feature) != null) {
+			return "BackboneElement";
+		}
+		EClassifier type = feature.getEType();
+		String name = suffix != null ? suffix : type.getName();
+		if ("ResourceContainer".equals(name)) {
+			return "Resource";
+		}
+		EStructuralFeature value = type instanceof EClass eClass ? eClass.getEStructuralFeature("value") : null;
+		if (!(value instanceof EAttribute)) {
+			return name;
+		}
+		if (suffix == null && value.getEType() instanceof EEnum) {
+			return "code";
+		}
+		return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+	}
+
+	/** The spec class a type code names (string: String, Address: Address), or null. */
+	private EClass typeClass(String code) {
+		if (code == null || code.isEmpty() || code.indexOf('/') >= 0) {
+			return null;
+		}
+		EClassifier classifier = index.getSpec().getEClassifier(Character.toUpperCase(code.charAt(0)) + code.substring(1));
+		return classifier instanceof EClass eClass ? eClass : null;
+	}
+
+	private static ElementDefinition element(String id, String path, int min, int max, String doc) {
+		ElementDefinition elem = FhirFactory.eINSTANCE.createElementDefinition();
+		elem.setId(id);
+		elem.setPath(string(path));
+		if (doc != null) {
+			elem.setShort(string(doc));
+		}
+		elem.setMin(FhirFactory.eINSTANCE.createUnsignedInt());
+		elem.getMin().setValue(BigInteger.valueOf(min));
+		elem.setMax(string(max == EStructuralFeature.UNBOUNDED_MULTIPLICITY ? "*" : String.valueOf(max)));
+		return elem;
+	}
+
+	private static ElementDefinitionType type(String code) {
+		ElementDefinitionType type = FhirFactory.eINSTANCE.createElementDefinitionType();
+		type.setCode(FhirFactory.eINSTANCE.createUri());
+		type.getCode().setValue(code);
+		return type;
+	}
+
+	/** Extensions are sliced by url, open and unordered, unless a profile says otherwise. */
+	private static ElementDefinitionSlicing extensionSlicing() {
+		ElementDefinitionSlicing slicing = FhirFactory.eINSTANCE.createElementDefinitionSlicing();
+		ElementDefinitionDiscriminator discriminator = FhirFactory.eINSTANCE.createElementDefinitionDiscriminator();
+		discriminator.setType(FhirFactory.eINSTANCE.createDiscriminatorType());
+		discriminator.getType().setValue(DiscriminatorTypeEnum.VALUE);
+		discriminator.setPath(string("url"));
+		slicing.getDiscriminator().add(discriminator);
+		slicing.setOrdered(FhirFactory.eINSTANCE.createBoolean());
+		slicing.getOrdered().setValue(false);
+		slicing.setRules(FhirFactory.eINSTANCE.createSlicingRules());
+		slicing.getRules().setValue(SlicingRulesEnum.OPEN);
+		return slicing;
+	}
+
+	private static String documentation(EModelElement element) {
+		EAnnotation genModel = element.getEAnnotation(DOCUMENTATION_SOURCE);
+		return genModel == null ? null : genModel.getDetails().get("documentation");
+	}
+
+	private static org.hl7.fhir.String string(String value) {
+		org.hl7.fhir.String string = FhirFactory.eINSTANCE.createString();
+		string.setValue(value);
+		return string;
+	}
+
+	private static String value(org.hl7.fhir.String string) {
+		return string == null ? null : string.getValue();
+	}
+
+	private static String value(org.hl7.fhir.Uri uri) {
+		return uri == null ? null : uri.getValue();
+	}
+
+	private static String value(org.hl7.fhir.Canonical canonical) {
+		return canonical == null ? null : canonical.getValue();
+	}
+
+	/**
+	 * Sets on {@code target} every property {@code diff} sets, other than id
+	 * and path.  Lists are replaced, except constraints, conditions and
+	 * mappings, which are added to.
+	 */
+	@SuppressWarnings("unchecked")
+	static void overlay(ElementDefinition diff, ElementDefinition target) {
+		for (EStructuralFeature feature : diff.eClass().getEAllStructuralFeatures()) {
+			if (KEYS.contains(feature) || !diff.eIsSet(feature)) {
+				continue;
+			}
+			Object value = diff.eGet(feature);
+			if (feature.isMany()) {
+				EList<Object> values = (EList<Object>) target.eGet(feature);
+				if (!ADDITIVE.contains(feature)) {
+					values.clear();
+				}
+				for (Object item : (List<Object>) value) {
+					values.add(item instanceof EObject eObject ? EcoreUtil.copy(eObject) : item);
+				}
+			} else {
+				target.eSet(feature, value instanceof EObject eObject ? EcoreUtil.copy(eObject) : value);
+			}
+		}
+	}
+
+	/** The id of {@code elem}, or failing that its path and any slice name. */
+	static String key(ElementDefinition elem) {
+		if (elem.getId() != null) {
+			return elem.getId();
+		}
+		String path = value(elem.getPath());
+		String sliceName = value(elem.getSliceName());
+		return sliceName == null ? path : path + ":" + sliceName;
+	}
+
+	/** One element of a snapshot under construction and the element after it. */
+	private static final class Node {
+
+		final ElementDefinition elem;
+		Node next;
+
+		Node(ElementDefinition elem, Node next) {
+			this.elem = elem;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * The elements of one snapshot under construction, by id.  They are kept
+	 * in a linked list, with each element's node found by identity, so slices
+	 * and unfolded children are inserted without searching or shifting the
+	 * elements before them.
+	 */
+	private class Merge {
+
+		final Node head = new Node(null, null);
+		final Map<ElementDefinition, Node> nodes = new IdentityHashMap<>();
+		final Map<String, ElementDefinition> byId = new HashMap<>();
+
+		Merge(Collection<ElementDefinition> elements) {
+			insertAfter(head, elements);
+			for (ElementDefinition elem : elements) {
+				byId.putIfAbsent(key(elem), elem);
+			}
+		}
+
+		/** The elements in snapshot order. */
+		List<ElementDefinition> elements() {
+			List<ElementDefinition> elements = new ArrayList<>(nodes.size());
+			for (Node node = head.next; node != null; node = node.next) {
+				elements.add(node.elem);
+			}
+			return elements;
+		}
+
+		void insertAfter(Node at, Collection<ElementDefinition> added) {
+			for (ElementDefinition elem : added) {
+				at = at.next = new Node(elem, at.next);
+				nodes.put(elem, at);
+			}
+		}
+
+		void apply(ElementDefinition diff) {
+			String key = key(diff);
+			ElementDefinition target = key == null ? null : find(key);
+			if (target == null) {
+				log.warn("No base element for differential element {}", key);
+				return;
+			}
+			overlay(diff, target);
+		}
+
+		/**
+		 * The element with id {@code key}, adding it if it is a slice of, or
+		 * a datatype child of, an element that exists.
+		 */
+		ElementDefinition find(String key) {
+			ElementDefinition elem = byId.get(key);
+			if (elem != null) {
+				return elem;
+			}
+			int dot = key.lastIndexOf('.');
+			int colon = key.lastIndexOf(':');
+			if (colon > dot) {
+				ElementDefinition sliced = find(key.substring(0, colon));
+				return sliced == null ? null : addSlice(sliced, key, key.substring(colon + 1));
+			}
+			if (dot < 0) {
+				return null;
+			}
+			ElementDefinition parent = find(key.substring(0, dot));
+			if (parent != null) {
+				unfold(parent);
+			}
+			return byId.get(key);
+		}
+
+		/**
+		 * Adds slice {@code key} after {@code sliced}'s last slice, with a copy
+		 * of each element below {@code sliced} renamed under the slice, as
+		 * published snapshots repeat a backbone's children for every slice.
+		 */
+		ElementDefinition addSlice(ElementDefinition sliced, String key, String sliceName) {
+			ElementDefinition slice = EcoreUtil.copy(sliced);
+			slice.setSlicing(null);
+			slice.setId(key);
+			slice.setSliceName(string(sliceName));
+			if (sliced.getSlicing() == null && isExtension(sliced)) {
+				sliced.setSlicing(extensionSlicing());
+			}
+			String slicedKey = key(sliced);
+			List<ElementDefinition> added = new ArrayList<>();
+			added.add(slice);
+			for (Node node = nodes.get(sliced).next; node != null && key(node.elem).startsWith(slicedKey + "."); node = node.next) {
+				ElementDefinition child = EcoreUtil.copy(node.elem);
+				child.setId(key + key(node.elem).substring(slicedKey.length()));
+				added.add(child);
+			}
+			insertAfter(last(sliced), added);
+			for (ElementDefinition elem : added) {
+				byId.putIfAbsent(key(elem), elem);
+			}
+			return slice;
+		}
+
+		/** Adds the children of {@code parent}'s datatype after it, unless it has children already. */
+		void unfold(ElementDefinition parent) {
+			String key = key(parent);
+			Node at = nodes.get(parent);
+			if (at.next != null && key(at.next.elem).startsWith(key + ".")) {
+				return;
+			}
+			EClass type = parent.getType().size() == 1 ? typeClass(value(parent.getType().get(0).getCode())) : null;
+			if (type == null) {
+				return;
+			}
+			List<ElementDefinition> children = new ArrayList<>();
+			children(type, key, value(parent.getPath()), true, false, children, new HashSet<>());
+			insertAfter(at, children);
+			for (ElementDefinition child : children) {
+				byId.putIfAbsent(child.getId(), child);
+			}
+		}
+
+		/** The node of the last of {@code elem}, its descendants and its slices. */
+		Node last(ElementDefinition elem) {
+			String key = key(elem);
+			Node at = nodes.get(elem);
+			while (at.next != null) {
+				String next = key(at.next.elem);
+				if (!next.startsWith(key + ".") && !next.startsWith(key + ":")) {
+					break;
+				}
+				at = at.next;
+			}
+			return at;
+		}
+
+		/** Raises each sliced element's min to the sum of its slices' mins. */
+		void sumSliceMins() {
+			Map<String, BigInteger> sums = new LinkedHashMap<>();
+			for (Node node = head.next; node != null; node = node.next) {
+				ElementDefinition elem = node.elem;
+				String key = key(elem);
+				int colon = key.lastIndexOf(':');
+				if (colon > key.lastIndexOf('.') && elem.getMin() != null && elem.getMin().getValue() != null) {
+					sums.merge(key.substring(0, colon), elem.getMin().getValue(), BigInteger::add);
+				}
+			}
+			for (Map.Entry<String, BigInteger> sum : sums.entrySet()) {
+				ElementDefinition sliced = byId.get(sum.getKey());
+				if (sliced != null && sliced.getMin() != null && sliced.getMin().getValue() != null
+						&& sliced.getMin().getValue().compareTo(sum.getValue()) < 0) {
+					sliced.getMin().setValue(sum.getValue());
+				}
+			}
+		}
+
+		private boolean isExtension(ElementDefinition elem) {
+			String path = value(elem.getPath());
+			return path != null && (path.endsWith(".extension") || path.endsWith(".modifierExtension"));
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EcorePackage;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.BinaryResourceImpl;
+import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.hl7.fhir.emf.FHIRSerDeser;
+import org.hl7.fhir.emf.Finals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps parsed spec packages (fhir.ecore) in EMF binary resource format so
+ * that later runs skip the XML parse.  Entries are keyed by a SHA-256 of the
+ * source ecore, so a changed spec never hits a stale entry.
+ */
+public class SpecCache {
+
+	private static final Logger log = LoggerFactory.getLogger(SpecCache.class);
+
+	public static final String CACHE_EXTENSION = ".ecorebin";
+
+	/** Bump when the on-disk layout changes; it is folded into every key. */
+	static final String CACHE_VERSION = "1";
+
+	private final Path dir;
+
+	public SpecCache(Path dir) {
+		this.dir = dir;
+	}
+
+	public static Path defaultDir() {
+		return Paths.get(System.getProperty("user.home"), ".psoppc", "spec-cache");
+	}
+
+	public Path getDir() {
+		return dir;
+	}
+
+	/**
+	 * Returns the spec package for the given ecore source, reading the binary
+	 * entry when present and parsing then storing it otherwise.
+	 */
+	public EPackage load(byte[] source) {
+		return load(ByteBuffer.wrap(source));
+	}
+
+	/**
+	 * As {@link #load(byte[])}, for a source that may be memory mapped; on a
+	 * cache hit its content is only hashed, never copied onto the heap.
+	 */
+	public EPackage load(ByteBuffer source) {
+		String key = hash(source);
+		Path entry = dir.resolve(key + CACHE_EXTENSION);
+		if (Files.isRegularFile(entry)) {
+			try {
+				EPackage spec = read(entry);
+				log.debug("spec cache hit {}", entry);
+				return spec;
+			} catch (IOException | RuntimeException e) {
+				log.warn("Discarding unreadable spec cache entry {}", entry, e);
+			}
+		}
+		log.debug("spec cache miss {}", entry);
+		ProfilerEvents.SerDeserEvent event = ProfilerEvents.serDeser("load", Finals.SDS_FORMAT.ECORE.name(), null);
+		EPackage spec = (EPackage) FHIRSerDeser.load(new Inputs.ByteBufferInputStream(source), Finals.SDS_FORMAT.ECORE);
+		event.classifier = spec.getName();
+		event.commit();
+		try {
+			write(spec, entry);
+		} catch (IOException e) {
+			log.warn("Could not write spec cache entry {}", entry, e);
+		}
+		return spec;
+	}
+
+	static String hash(byte[] source) {
+		return hash(ByteBuffer.wrap(source));
+	}
+
+	static String hash(ByteBuffer source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(CACHE_VERSION.getBytes());
+			digest.update(source.duplicate());
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	EPackage read(Path entry) throws IOException {
+		ResourceSet resourceSet = new ResourceSetImpl();
+		// The binary stream names Ecore by nsURI; register it explicitly since
+		// nothing else may have touched EcorePackage yet in a fresh JVM.
+		resourceSet.getPackageRegistry().put(EcorePackage.eNS_URI, EcorePackage.eINSTANCE);
+		Resource resource = new BinaryResourceImpl(URI.createFileURI(entry.toString()));
+		resourceSet.getResources().add(resource);
+		try (InputStream in = Files.newInputStream(entry)) {
+			resource.load(in, Collections.emptyMap());
+		}
+		EPackage spec = (EPackage) resource.getContents().get(0);
+		// Let features copied out of the spec refer to it by nsURI rather than
+		// by the location of the cache entry.
+		resource.setURI(URI.createURI(spec.getNsURI()));
+		return spec;
+	}
+
+	/**
+	 * Writes to a temporary sibling first and moves it into place so that a
+	 * concurrent reader never sees a partial entry.  The spec stays in the
+	 * resource it is saved from, which is named by nsURI as in {@link #read},
+	 * so output written on a miss refers to the spec as output written on a
+	 * hit does, not by the location of the cache entry.
+	 */
+	void write(EPackage spec, Path entry) throws IOException {
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, "spec", ".tmp");
+		try {
+			Resource resource = new BinaryResourceImpl(URI.createURI(spec.getNsURI()));
+			resource.getContents().add(spec);
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				resource.save(out, Collections.emptyMap());
+			}
+			Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
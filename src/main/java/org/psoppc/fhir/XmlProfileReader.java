@@ -0,0 +1,135 @@
+package org.psoppc.fhir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.hl7.fhir.FhirFactory;
+import org.hl7.fhir.StructureDefinition;
+
+/**
+ * Reads a StructureDefinition in FHIR XML with a StAX stream reader,
+ * materializing only the {@link ProfileProjection}.  Unlike
+ * {@code FHIRSerDeser.load}, which builds the whole EMF graph (narrative
+ * XHTML, mappings, constraints, examples ...), a subtree outside the
+ * projection is passed over event by event and never becomes an object.
+ * <p>
+ * XML elements are matched to the features of the FHIR EMF model by local
+ * name.  A primitive's {@code value} attribute and an element's {@code id}
+ * attribute are set on the instance.  The reader holds no per-document state
+ * and may be shared between threads.
+ */
+public class XmlProfileReader {
+
+	public static final String FHIR_NAMESPACE = "http://hl7.org/fhir";
+
+	private final XMLInputFactory factory;
+
+	public XmlProfileReader() {
+		factory = XMLInputFactory.newFactory();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	public StructureDefinition read(InputStream in) throws IOException {
+		XMLStreamReader reader = null;
+		try {
+			// Factories are only safe to share once configured if creation is serialized
+			synchronized (factory) {
+				reader = factory.createXMLStreamReader(in);
+			}
+			reader.nextTag();
+			StructureDefinition profile = FhirFactory.eINSTANCE.createStructureDefinition();
+			if (!FHIR_NAMESPACE.equals(reader.getNamespaceURI()) || !profile.eClass().getName().equals(reader.getLocalName())) {
+				throw new IOException("Expected a StructureDefinition, not " + reader.getName() + " at " + reader.getLocation());
+			}
+			readElement(reader, profile);
+			return profile;
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// nothing was written
+				}
+			}
+		}
+	}
+
+	/** Reads the element the reader is at, up to its end tag, into {@code target}. */
+	private void readElement(XMLStreamReader reader, EObject target) throws XMLStreamException, IOException {
+		EClass eClass = target.eClass();
+		setAttribute(reader, target, eClass.getEStructuralFeature("id"), "id");
+		setAttribute(reader, target, eClass.getEStructuralFeature("value"), "value");
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = reader.getLocalName();
+			EStructuralFeature feature = ProfileProjection.includes(eClass, name) ? eClass.getEStructuralFeature(name) : null;
+			if (feature instanceof EReference reference) {
+				EObject child = EcoreUtil.create(reference.getEReferenceType());
+				readElement(reader, child);
+				add(target, feature, child);
+			} else if (feature instanceof EAttribute attribute) {
+				String value = reader.getAttributeValue(null, "value");
+				if (value != null) {
+					add(target, feature, fromString(reader, attribute, value));
+				}
+				skip(reader);
+			} else {
+				skip(reader);
+			}
+		}
+	}
+
+	private static void setAttribute(XMLStreamReader reader, EObject target, EStructuralFeature feature, String name) throws IOException {
+		if (feature instanceof EAttribute attribute && !feature.isMany()) {
+			String value = reader.getAttributeValue(null, name);
+			if (value != null) {
+				target.eSet(attribute, fromString(reader, attribute, value));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void add(EObject target, EStructuralFeature feature, Object value) {
+		if (feature.isMany()) {
+			((List<Object>) target.eGet(feature)).add(value);
+		} else {
+			target.eSet(feature, value);
+		}
+	}
+
+	private static Object fromString(XMLStreamReader reader, EAttribute attribute, String value) throws IOException {
+		try {
+			return EcoreUtil.createFromString(attribute.getEAttributeType(), value);
+		} catch (RuntimeException e) {
+			throw new IOException("Not a valid " + attribute.getEAttributeType().getName() + ": " + value + " at " + reader.getLocation(), e);
+		}
+	}
+
+	/** Passes over the element the reader is at, leaving the reader on its end tag. */
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
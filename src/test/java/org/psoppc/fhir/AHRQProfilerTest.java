@@ -4,6 +4,11 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.emf.ecore.EAnnotation;
 import org.eclipse.emf.ecore.EClass;
 import org.eclipse.emf.ecore.EClassifier;
 import org.eclipse.emf.ecore.EObject;
@@ -26,7 +31,7 @@ public class AHRQProfilerTest {
 	static void beforAll() {
 		String[] ss = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore", "-o", "out.ecore"};
 		try {
-			sut = new AHRQProfiler(ss);
+			sut = profiler(ss);
 		} catch (CmdLineException e) {
 			e.printStackTrace();
 		}
@@ -70,6 +75,136 @@ public class AHRQProfilerTest {
 		StructureDefinitionSnapshot snap = profile.getSnapshot();
 		sut.populateEcoreOut(snap, spec, out);
 
+		EClass adverseEvent = (EClass) out.getEClassifier("AdverseEvent");
+		assertNotNull(adverseEvent);
+		long suspectEntities = adverseEvent.getEStructuralFeatures().stream()
+			.filter(f -> "suspectEntity".equals(f.getName()))
+			.count();
+		assertEquals(1, suspectEntities);
+		EClass causality = (EClass) out.getEClassifier("AdverseEventCausality");
+		assertNotNull(causality);
+		assertNotNull(causality.getEStructuralFeature("assessment"));
+	}
+
+	@Test
+	void testPopulateChoiceElements() throws CmdLineException {
+		AHRQProfiler patient = profiler(new String[] {"-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-i", "fhir.ecore"});
+		EPackage spec = patient.loadSpec();
+		EPackage out = patient.createOutputPackage(spec);
+		patient.populateEcoreOut(patient.loadProfile().getSnapshot(), spec, out);
+
+		EClass patientClass = (EClass) out.getEClassifier("Patient");
+		assertNotNull(patientClass.getEStructuralFeature("deceasedBoolean"));
+		assertNotNull(patientClass.getEStructuralFeature("deceasedDateTime"));
+		assertNotNull(patientClass.getEStructuralFeature("multipleBirthInteger"));
+		assertEquals(0, patientClass.getEStructuralFeature("deceasedBoolean").getLowerBound());
+		assertTrue(patient.diagnostics().sorted().stream()
+			.noneMatch(e -> e.getKey().path().equals("Patient.deceased[x]") || e.getKey().path().equals("Patient.multipleBirth[x]")));
+	}
+
+	@Test
+	void testMergeProfiles() throws CmdLineException {
+		String[] ss = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-i", "fhir.ecore", "-o", "out.ecore"};
+		AHRQProfiler merger = profiler(ss);
+		List<StructureDefinition> profiles = merger.loadProfiles();
+		assertEquals(2, profiles.size());
+
+		EPackage spec = merger.loadSpec();
+		EPackage out = merger.createOutputPackage(spec);
+		for (StructureDefinition profile : profiles) {
+			merger.populateEcoreOut(profile.getSnapshot(), spec, out);
+		}
+		assertNotNull(out.getEClassifier("AdverseEvent"));
+		assertNotNull(out.getEClassifier("Patient"));
+	}
+
+	@Test
+	void testParallelMatchesSequential() throws CmdLineException {
+		String[] sequential = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-i", "fhir.ecore", "-o", "out.ecore"};
+		String[] parallel = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-i", "fhir.ecore", "-o", "out.ecore", "-t", "2"};
+		AHRQProfiler seq = profiler(sequential);
+		AHRQProfiler par = profiler(parallel);
+		EPackage spec = seq.loadSpec();
+		assertEquals(outline(seq.profileAll(spec)), outline(par.profileAll(spec)));
+	}
+
+	@Test
+	void testDifferentialMatchesSnapshot() throws CmdLineException {
+		String[] snapshot = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore", "-o", "out.ecore"};
+		String[] differential = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore", "-o", "out.ecore", "--differential"};
+		AHRQProfiler snap = profiler(snapshot);
+		AHRQProfiler diff = profiler(differential);
+		EPackage spec = snap.loadSpec();
+		StructureDefinition profile = snap.loadProfile();
+		assertTrue(profile.getDifferential().getElement().size() < profile.getSnapshot().getElement().size());
+
+		List<String> expected = constrained(snap.profileAll(spec));
+		List<String> actual = constrained(diff.profileAll(spec));
+		expected.sort(null);
+		actual.sort(null);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	void testDifferentialFallsBackToSnapshot() throws CmdLineException {
+		String[] differential = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore", "-o", "out.ecore", "--differential"};
+		AHRQProfiler diff = profiler(differential);
+		EPackage spec = diff.loadSpec();
+		StructureDefinition profile = diff.loadProfile();
+		EPackage expected = diff.createOutputPackage(spec);
+		diff.populateEcoreOut(profile.getSnapshot(), spec, expected);
+
+		profile.getDifferential().getElement().clear();
+		EPackage out = diff.createOutputPackage(spec);
+		diff.populate(profile, spec, out);
+		assertEquals(outline(expected), outline(out));
+	}
+
+	/**
+	 * A profiler for {@code args} that neither reads nor writes the spec
+	 * cache, so tests leave the home directory alone and do not depend on
+	 * what earlier runs cached.
+	 */
+	static AHRQProfiler profiler(String... args) throws CmdLineException {
+		String[] isolated = Arrays.copyOf(args, args.length + 1);
+		isolated[args.length] = "--no-spec-cache";
+		return new AHRQProfiler(isolated);
+	}
+
+	/** The outline of the features carrying profile constraints (bounds and mustSupport). */
+	static List<String> constrained(EPackage out) {
+		List<String> lines = new ArrayList<>();
+		for (EClassifier classifier : out.getEClassifiers()) {
+			for (EStructuralFeature feature : ((EClass) classifier).getEStructuralFeatures()) {
+				EAnnotation fhir = feature.getEAnnotation(AHRQProfiler.HL7_FHIR_URL);
+				lines.add(classifier.getName() + "." + feature.getName() + ":" + feature.getEType().getName()
+					+ "[" + feature.getLowerBound() + ".." + feature.getUpperBound() + "]"
+					+ (fhir != null && fhir.getDetails().containsKey("mustSupport") ? " mustSupport" : ""));
+			}
+		}
+		return lines;
+	}
+
+	static List<String> outline(EPackage out) {
+		List<String> lines = new ArrayList<>();
+		for (EClassifier classifier : out.getEClassifiers()) {
+			for (EStructuralFeature feature : ((EClass) classifier).getEStructuralFeatures()) {
+				lines.add(classifier.getName() + "." + feature.getName() + ":" + feature.getEType().getName()
+					+ "[" + feature.getLowerBound() + ".." + feature.getUpperBound() + "]");
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	void testCreateOutputPackage() {
+		EPackage spec = sut.loadSpec();
+		EPackage out = sut.createOutputPackage(spec);
+		assertEquals(spec.getName(), out.getName());
+		assertEquals(spec.getNsURI(), out.getNsURI());
+		assertEquals(spec.getNsPrefix(), out.getNsPrefix());
+		assertEquals(spec.getEAnnotations().size(), out.getEAnnotations().size());
+		assertEquals(0, out.getEClassifiers().size());
 	}
 
 	@Test
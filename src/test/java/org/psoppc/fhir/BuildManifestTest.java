@@ -0,0 +1,118 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class BuildManifestTest {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	void testUnchangedProfileReusesFragment() throws CmdLineException, IOException {
+		Path profile = tmp.resolve("adverseevent.xml");
+		try (InputStream in = getClass().getClassLoader().getResourceAsStream("StructureDefinition-qicore-adverseevent.xml")) {
+			Files.copy(in, profile);
+		}
+		String[] args = {"-p", profile.toString(), "-i", "fhir.ecore", "--build-cache", tmp.resolve("cache").toString()};
+		AHRQProfiler sut = AHRQProfilerTest.profiler(args);
+		EPackage spec = sut.loadSpec();
+
+		EPackage first = sut.profileAll(spec);
+		BuildManifest manifest = new BuildManifest(tmp.resolve("cache"), SpecCache.hash(Inputs.read("fhir.ecore")), sut.configuration());
+		String hash = manifest.hash(profile.toString());
+		assertNotNull(hash);
+		EPackage fragment = manifest.fragment(profile.toString(), hash, spec);
+		assertNotNull(fragment);
+		EClass adverseEvent = (EClass) fragment.getEClassifier("AdverseEvent");
+		assertEquals(spec.getEClassifier("CodeableConcept"), adverseEvent.getEStructuralFeature("event").getEType());
+
+		EPackage second = sut.profileAll(spec);
+		assertEquals(AHRQProfilerTest.outline(first), AHRQProfilerTest.outline(second));
+
+		Files.writeString(profile, "\n", StandardOpenOption.APPEND);
+		sut.profileAll(spec);
+		manifest = new BuildManifest(tmp.resolve("cache"), SpecCache.hash(Inputs.read("fhir.ecore")), sut.configuration());
+		assertNotEquals(hash, manifest.hash(profile.toString()));
+		try (var files = Files.list(tmp.resolve("cache").resolve("fragments"))) {
+			assertEquals(List.of(manifest.fragmentFile(manifest.hash(profile.toString()))), files.toList());
+		}
+	}
+
+	static String adverseEvent(String url, String base, String seriousness) {
+		return "{\"resourceType\": \"StructureDefinition\", \"url\": \"" + url + "\", \"type\": \"AdverseEvent\", \"baseDefinition\": \"" + base + "\""
+			+ ", \"differential\": {\"element\": [{\"id\": \"AdverseEvent\", \"path\": \"AdverseEvent\"}"
+			+ ", {\"id\": \"AdverseEvent.seriousness\", \"path\": \"AdverseEvent.seriousness\", " + seriousness + "}]}}";
+	}
+
+	@Test
+	void testChangedBaseRebuildsDerivedProfile() throws CmdLineException, IOException {
+		Path base = tmp.resolve("base.json");
+		Path derived = tmp.resolve("derived.json");
+		Files.writeString(base, adverseEvent("http://example.org/base", SnapshotGeneratorTest.CORE_URL, "\"min\": 1"));
+		Files.writeString(derived, adverseEvent("http://example.org/derived", "http://example.org/base", "\"short\": \"Derived\""));
+		String[] args = {"-p", base.toString(), "-p", derived.toString(), "-i", "fhir.ecore", "--differential", "--build-cache", tmp.resolve("cache").toString()};
+
+		AHRQProfiler first = AHRQProfilerTest.profiler(args);
+		first.profileAll(first.loadSpec());
+		BuildManifest manifest = new BuildManifest(tmp.resolve("cache"), SpecCache.hash(Inputs.read("fhir.ecore")), first.configuration());
+		String hash = manifest.hash(derived.toString());
+		assertNotNull(hash);
+
+		AHRQProfiler unchanged = AHRQProfilerTest.profiler(args);
+		unchanged.profileAll(unchanged.loadSpec());
+		manifest = new BuildManifest(tmp.resolve("cache"), SpecCache.hash(Inputs.read("fhir.ecore")), unchanged.configuration());
+		assertEquals(hash, manifest.hash(derived.toString()));
+
+		Files.writeString(base, adverseEvent("http://example.org/base", SnapshotGeneratorTest.CORE_URL, "\"min\": 0"));
+		AHRQProfiler changed = AHRQProfilerTest.profiler(args);
+		changed.profileAll(changed.loadSpec());
+		manifest = new BuildManifest(tmp.resolve("cache"), SpecCache.hash(Inputs.read("fhir.ecore")), changed.configuration());
+		assertNotEquals(hash, manifest.hash(derived.toString()));
+	}
+
+	@Test
+	void testConfigurationCoversCodeAndPackages() throws CmdLineException, IOException {
+		String code = BuildManifest.codeHash();
+		assertEquals(64, code.length());
+		String configuration = AHRQProfilerTest.profiler("-i", "fhir.ecore").configuration();
+		assertTrue(configuration.startsWith(code));
+		assertNotEquals(configuration, AHRQProfilerTest.profiler("-i", "fhir.ecore", "--differential").configuration());
+
+		Path indexed = tmp.resolve("indexed.tgz");
+		Path unindexed = tmp.resolve("unindexed.tgz");
+		Files.write(indexed, NpmPackageTest.tgz(true));
+		Files.write(unindexed, NpmPackageTest.tgz(false));
+		String withIndexed = AHRQProfilerTest.profiler("-i", "fhir.ecore", "--package", indexed.toString()).configuration();
+		assertNotEquals(configuration, withIndexed);
+		assertEquals(withIndexed, AHRQProfilerTest.profiler("-i", "fhir.ecore", "--package", indexed.toString()).configuration());
+		assertNotEquals(withIndexed, AHRQProfilerTest.profiler("-i", "fhir.ecore", "--package", unindexed.toString()).configuration());
+	}
+
+	@Test
+	void testChangedSpecDiscardsEntries() throws IOException {
+		BuildManifest manifest = new BuildManifest(tmp, "spec-1", "v1 snapshot");
+		manifest.save(List.of());
+		Files.writeString(tmp.resolve(BuildManifest.MANIFEST), "profile.a.xml=abc\n", StandardOpenOption.APPEND);
+		assertEquals("abc", new BuildManifest(tmp, "spec-1", "v1 snapshot").hash("a.xml"));
+		assertNull(new BuildManifest(tmp, "spec-2", "v1 snapshot").hash("a.xml"));
+		assertNull(new BuildManifest(tmp, "spec-1", "v2 snapshot").hash("a.xml"));
+		assertTrue(Files.isRegularFile(tmp.resolve(BuildManifest.MANIFEST)));
+	}
+}
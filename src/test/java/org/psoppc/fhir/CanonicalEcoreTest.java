@@ -0,0 +1,150 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.emf.ecore.EAnnotation;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.eclipse.emf.ecore.EcorePackage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class CanonicalEcoreTest {
+
+	@TempDir
+	Path tmp;
+
+	static EPackage sample(boolean reversed) {
+		EPackage pkg = EcoreFactory.eINSTANCE.createEPackage();
+		pkg.setName("fhir");
+		pkg.setNsURI("http://hl7.org/fhir");
+		pkg.setNsPrefix("fhir");
+		List<String> classes = reversed ? List.of("Patient", "AdverseEvent") : List.of("AdverseEvent", "Patient");
+		for (String name : classes) {
+			EClass eClass = EcoreFactory.eINSTANCE.createEClass();
+			eClass.setName(name);
+			List<String> features = reversed ? List.of("subject", "id") : List.of("id", "subject");
+			for (String featureName : features) {
+				EStructuralFeature feature = EcoreFactory.eINSTANCE.createEAttribute();
+				feature.setName(featureName);
+				feature.setEType(EcorePackage.Literals.ESTRING);
+				EAnnotation annotation = EcoreFactory.eINSTANCE.createEAnnotation();
+				annotation.setSource(AHRQProfiler.HL7_FHIR_URL);
+				if (reversed) {
+					annotation.getDetails().put("mustSupport", "true");
+					annotation.getDetails().put("binding.strength", "required");
+				} else {
+					annotation.getDetails().put("binding.strength", "required\r\n");
+					annotation.getDetails().put("mustSupport", "true");
+				}
+				feature.getEAnnotations().add(annotation);
+				eClass.getEStructuralFeatures().add(feature);
+			}
+			pkg.getEClassifiers().add(eClass);
+		}
+		return pkg;
+	}
+
+	@Test
+	void testSortsAndNormalizes() {
+		EPackage pkg = sample(true);
+		CanonicalEcore.canonicalize(pkg);
+		assertEquals("AdverseEvent", pkg.getEClassifiers().get(0).getName());
+		EClass patient = (EClass) pkg.getEClassifier("Patient");
+		assertEquals("id", patient.getEStructuralFeatures().get(0).getName());
+		EAnnotation annotation = patient.getEStructuralFeatures().get(0).getEAnnotation(AHRQProfiler.HL7_FHIR_URL);
+		assertEquals("binding.strength", annotation.getDetails().get(0).getKey());
+		assertEquals("a\nb", CanonicalEcore.whitespace(" a \r\nb\t\r\n"));
+	}
+
+	@Test
+	void testEqualContentSavesToEqualBytes() throws IOException {
+		Path first = tmp.resolve("first.ecore");
+		Path second = tmp.resolve("second.ecore");
+		EPackage a = sample(false);
+		EPackage b = sample(true);
+		EcoreWriter.write(a, first, false, true);
+		EcoreWriter.write(b, second, false, true);
+		assertArrayEquals(Files.readAllBytes(first), Files.readAllBytes(second));
+		assertNotNull(CanonicalEcore.hash(a));
+		assertEquals(64, CanonicalEcore.hash(a).length());
+		assertEquals(CanonicalEcore.hash(a), CanonicalEcore.hash(b));
+		assertTrue(Files.readString(first).contains(CanonicalEcore.CANONICAL_URL));
+	}
+
+	@Test
+	void testHashFollowsContent() throws IOException {
+		Path target = tmp.resolve("target.ecore");
+		EPackage pkg = sample(false);
+		EcoreWriter.write(pkg, target, false, true);
+		String hash = CanonicalEcore.hash(pkg);
+		// Saving again hashes the document without the previous hash
+		EcoreWriter.write(pkg, target, false, true);
+		assertEquals(hash, CanonicalEcore.hash(pkg));
+
+		((EClass) pkg.getEClassifier("Patient")).getEStructuralFeatures().remove(0);
+		EcoreWriter.write(pkg, target, false, true);
+		assertNotEquals(hash, CanonicalEcore.hash(pkg));
+	}
+
+	@Test
+	void testOrderOfDisjointProfilesDoesNotChangeOutput() throws CmdLineException, IOException {
+		String[] forward = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-i", "fhir.ecore", "-o", "out.ecore"};
+		String[] backward = {"-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore", "-o", "out.ecore"};
+		AHRQProfiler first = AHRQProfilerTest.profiler(forward);
+		AHRQProfiler second = AHRQProfilerTest.profiler(backward);
+		EPackage spec = first.loadSpec();
+		EcoreWriter.write(first.profileAll(spec), tmp.resolve("a.ecore"), false, true);
+		EcoreWriter.write(second.profileAll(spec), tmp.resolve("b.ecore"), false, true);
+		assertArrayEquals(Files.readAllBytes(tmp.resolve("a.ecore")), Files.readAllBytes(tmp.resolve("b.ecore")));
+	}
+
+	@Test
+	void testColdAndWarmSpecCacheGiveEqualHash() throws CmdLineException, IOException {
+		String[] args = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore", "-o", "out.ecore", "--spec-cache", tmp.resolve("spec-cache").toString()};
+		AHRQProfiler cold = new AHRQProfiler(args);
+		EPackage coldOut = cold.profileAll(cold.loadSpec());
+		EcoreWriter.write(coldOut, tmp.resolve("cold.ecore"), false, true);
+		AHRQProfiler warm = new AHRQProfiler(args);
+		EPackage warmOut = warm.profileAll(warm.loadSpec());
+		EcoreWriter.write(warmOut, tmp.resolve("warm.ecore"), false, true);
+		assertNotNull(CanonicalEcore.hash(coldOut));
+		assertEquals(CanonicalEcore.hash(coldOut), CanonicalEcore.hash(warmOut));
+		assertArrayEquals(Files.readAllBytes(tmp.resolve("cold.ecore")), Files.readAllBytes(tmp.resolve("warm.ecore")));
+	}
+
+	@Test
+	void testBindingStrengthIsTheCode() throws CmdLineException {
+		String[] ss = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore", "-o", "out.ecore"};
+		AHRQProfiler profiler = AHRQProfilerTest.profiler(ss);
+		EPackage out = profiler.profileAll(profiler.loadSpec());
+		int bound = 0;
+		for (EClassifier classifier : out.getEClassifiers()) {
+			if (classifier instanceof EClass eClass) {
+				for (EStructuralFeature feature : eClass.getEStructuralFeatures()) {
+					EAnnotation fhir = feature.getEAnnotation(AHRQProfiler.HL7_FHIR_URL);
+					String strength = fhir == null ? null : fhir.getDetails().get("binding.strength");
+					if (strength != null) {
+						assertTrue(Set.of("required", "extensible", "preferred", "example").contains(strength), strength);
+						bound++;
+					}
+				}
+			}
+		}
+		assertTrue(bound > 0);
+	}
+}
@@ -0,0 +1,55 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.junit.jupiter.api.Test;
+import org.kohsuke.args4j.CmdLineException;
+
+public class ClassifierClosureTest {
+
+	@Test
+	void testOutputIsSelfContained() throws CmdLineException {
+		AHRQProfiler sut = AHRQProfilerTest.profiler(new String[] {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore"});
+		EPackage spec = sut.loadSpec();
+		EPackage out = sut.profileAll(spec);
+		EClass profiled = (EClass) out.getEClassifier("AdverseEvent");
+		int profiledFeatures = profiled.getEStructuralFeatures().size();
+
+		ClassifierClosure closure = new ClassifierClosure(spec);
+		BitSet reachable = closure.reachable(out);
+		int copied = closure.copyInto(out);
+		assertTrue(copied > 0);
+		assertTrue(out.getEClassifiers().size() < spec.getEClassifiers().size());
+
+		Set<String> names = new HashSet<>();
+		for (EClassifier classifier : out.getEClassifiers()) {
+			assertTrue(names.add(classifier.getName()), "copied once: " + classifier.getName());
+			if (classifier instanceof EClass eClass) {
+				for (EClass superType : eClass.getESuperTypes()) {
+					assertSame(out, superType.getEPackage(), eClass.getName() + " extends " + superType.getName());
+				}
+				for (EStructuralFeature feature : eClass.getEStructuralFeatures()) {
+					assertNotSame(spec, feature.getEType().getEPackage(), eClass.getName() + "." + feature.getName());
+				}
+			}
+		}
+		assertSame(profiled, out.getEClassifier("AdverseEvent"));
+		assertEquals(profiledFeatures, profiled.getEStructuralFeatures().size());
+		assertTrue(reachable.get(spec.getEClassifiers().indexOf(spec.getEClassifier("CodeableConcept"))));
+		BitSet after = closure.reachable(out);
+		for (int id = after.nextSetBit(0); id >= 0; id = after.nextSetBit(id + 1)) {
+			assertTrue(out.getEClassifier(spec.getEClassifiers().get(id).getName()) != null);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.hl7.fhir.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DiagnosticsTest {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	void testCountsByCategoryAndPath() {
+		Diagnostics diagnostics = new Diagnostics();
+		diagnostics.report(Diagnostics.Category.FEATURE_NOT_FOUND, "Patient.address.city", "Patient");
+		diagnostics.report(Diagnostics.Category.FEATURE_NOT_FOUND, "Patient.address.city", "Patient");
+		diagnostics.report(Diagnostics.Category.FEATURE_NOT_FOUND, "Patient.address.line", "Patient");
+		diagnostics.report(Diagnostics.Category.CLASS_NOT_FOUND, "Foo.bar", "Foo");
+
+		assertEquals(4, diagnostics.total());
+		assertEquals(3, diagnostics.count(Diagnostics.Category.FEATURE_NOT_FOUND));
+		assertEquals(1, diagnostics.count(Diagnostics.Category.CLASS_NOT_FOUND));
+		assertEquals(0, diagnostics.count(Diagnostics.Category.INVALID_CARDINALITY));
+
+		List<Map.Entry<Diagnostics.Key, Long>> sorted = diagnostics.sorted();
+		assertEquals(3, sorted.size());
+		assertEquals("Foo.bar", sorted.get(0).getKey().path());
+		assertEquals("Patient.address.city", sorted.get(1).getKey().path());
+		assertEquals(2L, sorted.get(1).getValue().longValue());
+	}
+
+	@Test
+	void testWrite() throws IOException {
+		Diagnostics diagnostics = new Diagnostics();
+		diagnostics.report(Diagnostics.Category.INVALID_CARDINALITY, "AdverseEvent.event", "many");
+		Path file = tmp.resolve("file.json");
+		diagnostics.write(file);
+		String json = Files.readString(file);
+		Files.delete(file);
+		assertTrue(json.contains("INVALID_CARDINALITY"));
+		assertTrue(json.contains("AdverseEvent.event"));
+	}
+
+	@Test
+	void testPopulateEcoreOutCountsUnresolvedPaths() throws Exception {
+		AHRQProfiler sut = AHRQProfilerTest.profiler(new String[] {"-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-i", "fhir.ecore"});
+		EPackage spec = sut.loadSpec();
+		sut.populateEcoreOut(sut.loadProfile().getSnapshot(), spec, sut.createOutputPackage(spec));
+		assertTrue(sut.diagnostics().count(Diagnostics.Category.FEATURE_NOT_FOUND) > 0);
+	}
+
+	@Test
+	void testCountsProfileWithoutElements() throws Exception {
+		AHRQProfiler sut = AHRQProfilerTest.profiler(new String[] {"-i", "fhir.ecore"});
+		EPackage spec = sut.loadSpec();
+		StructureDefinition empty = ProfileRegistryTest.profile("http://example.org/empty", null, SnapshotGeneratorTest.CORE_URL);
+		empty.setDifferential(null);
+		EPackage out = sut.createOutputPackage(spec);
+		sut.populate(empty, spec, out);
+		assertTrue(out.getEClassifiers().isEmpty());
+		assertEquals(1, sut.diagnostics().count(Diagnostics.Category.NO_ELEMENTS));
+	}
+}
@@ -0,0 +1,54 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class EcoreWriterTest {
+
+	@TempDir
+	Path tmp;
+
+	static EPackage sample() {
+		EPackage pkg = EcoreFactory.eINSTANCE.createEPackage();
+		pkg.setName("fhir");
+		pkg.setNsURI("http://hl7.org/fhir");
+		pkg.setNsPrefix("fhir");
+		EClass eClass = EcoreFactory.eINSTANCE.createEClass();
+		eClass.setName("Pätient");
+		pkg.getEClassifiers().add(eClass);
+		return pkg;
+	}
+
+	@Test
+	void testWritesUtf8() throws IOException {
+		Path target = tmp.resolve("target.ecore");
+		EcoreWriter.write(sample(), target, false);
+		String xml = Files.readString(target, StandardCharsets.UTF_8);
+		assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"));
+		assertTrue(xml.contains("name=\"Pätient\""));
+	}
+
+	@Test
+	void testWritesGzip() throws IOException {
+		Path plain = tmp.resolve("plain.ecore");
+		Path gzipped = tmp.resolve("gzipped.ecore.gz");
+		EcoreWriter.write(sample(), plain, false);
+		EcoreWriter.write(sample(), gzipped, true);
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(gzipped))) {
+			assertEquals(Files.readString(plain, StandardCharsets.UTF_8), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+}
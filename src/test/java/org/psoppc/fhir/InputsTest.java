@@ -0,0 +1,59 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class InputsTest {
+
+	@TempDir
+	Path tmp;
+
+	static byte[] bytes(ByteBuffer buffer) {
+		byte[] out = new byte[buffer.remaining()];
+		buffer.duplicate().get(out);
+		return out;
+	}
+
+	@Test
+	void testReadsFile() throws IOException {
+		Path file = tmp.resolve("file.xml");
+		Files.writeString(file, "<StructureDefinition/>", StandardCharsets.UTF_8);
+		assertArrayEquals(Files.readAllBytes(file), bytes(Inputs.read(file.toString())));
+		try (InputStream in = Inputs.open(file.toString())) {
+			assertArrayEquals(Files.readAllBytes(file), in.readAllBytes());
+		}
+	}
+
+	@Test
+	void testReadsFileUri() throws IOException {
+		Path file = tmp.resolve("file.xml");
+		Files.writeString(file, "<StructureDefinition/>", StandardCharsets.UTF_8);
+		try (InputStream in = Inputs.open(file.toUri().toString())) {
+			assertArrayEquals(Files.readAllBytes(file), in.readAllBytes());
+		}
+	}
+
+	@Test
+	void testReadsClasspathResource() throws IOException {
+		try (InputStream expected = InputsTest.class.getClassLoader().getResourceAsStream("fhir.ecore")) {
+			assertEquals(expected.readAllBytes().length, Inputs.read("fhir.ecore").remaining());
+		}
+	}
+
+	@Test
+	void testMissingInput() {
+		assertThrows(FileNotFoundException.class, () -> Inputs.open("no-such-profile.xml"));
+	}
+}
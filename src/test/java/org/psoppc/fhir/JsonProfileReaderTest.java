@@ -0,0 +1,81 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.hl7.fhir.BindingStrengthEnum;
+import org.hl7.fhir.ElementDefinition;
+import org.hl7.fhir.StructureDefinition;
+import org.hl7.fhir.emf.Finals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class JsonProfileReaderTest {
+
+	@TempDir
+	Path tmp;
+
+	static StructureDefinition read(String resource) throws IOException {
+		try (InputStream in = Inputs.open(resource)) {
+			return new JsonProfileReader().read(in);
+		}
+	}
+
+	@Test
+	void testReadsStructureDefinition() throws IOException {
+		StructureDefinition profile = read("StructureDefinition-qicore-adverseevent.json");
+		assertEquals("http://hl7.org/fhir/us/qicore/StructureDefinition/qicore-adverseevent", profile.getUrl().getValue());
+		assertEquals("AdverseEvent", profile.getType().getValue());
+		assertEquals(41, profile.getSnapshot().getElement().size());
+		assertEquals(15, profile.getDifferential().getElement().size());
+		ElementDefinition root = profile.getSnapshot().getElement().get(0);
+		assertEquals("AdverseEvent", root.getId());
+		assertTrue(root.getConstraint().isEmpty());
+		assertTrue(root.getMapping().isEmpty());
+		assertNull(profile.getText());
+		boolean bound = profile.getSnapshot().getElement().stream()
+			.anyMatch(e -> e.getBinding() != null && e.getBinding().getStrength().getValue() == BindingStrengthEnum.REQUIRED);
+		assertTrue(bound);
+	}
+
+	@Test
+	void testJsonAndXmlProfileTheSame() throws CmdLineException, IOException {
+		String[] xml = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-i", "fhir.ecore", "-o", "out.ecore"};
+		String[] json = {"-p", "StructureDefinition-qicore-adverseevent.json", "-p", "StructureDefinition-de-identified-uds-plus-patient.json", "-i", "fhir.ecore", "-o", "out.ecore"};
+		AHRQProfiler fromXml = AHRQProfilerTest.profiler(xml);
+		AHRQProfiler fromJson = AHRQProfilerTest.profiler(json);
+		EPackage spec = fromXml.loadSpec();
+		EcoreWriter.write(fromXml.profileAll(spec), tmp.resolve("xml.ecore"), false, true);
+		EcoreWriter.write(fromJson.profileAll(spec), tmp.resolve("json.ecore"), false, true);
+		assertArrayEquals(Files.readAllBytes(tmp.resolve("xml.ecore")), Files.readAllBytes(tmp.resolve("json.ecore")));
+	}
+
+	@Test
+	void testDetectsFormat() {
+		ByteBuffer json = ByteBuffer.wrap("﻿  {\"resourceType\"".getBytes(StandardCharsets.UTF_8));
+		ByteBuffer xml = ByteBuffer.wrap("<?xml version=\"1.0\"?>".getBytes(StandardCharsets.UTF_8));
+		assertEquals(Finals.SDS_FORMAT.JSON, JsonProfileReader.format("profile", json));
+		assertEquals(Finals.SDS_FORMAT.XML, JsonProfileReader.format("profile", xml));
+		assertEquals(Finals.SDS_FORMAT.JSON, JsonProfileReader.format("profile.JSON", xml));
+		assertEquals(Finals.SDS_FORMAT.XML, JsonProfileReader.format("profile.xml", json));
+	}
+
+	@Test
+	void testRejectsOtherResources() {
+		byte[] patient = "{\"resourceType\": \"Patient\", \"id\": \"x\"}".getBytes(StandardCharsets.UTF_8);
+		assertThrows(IOException.class, () -> new JsonProfileReader().read(new ByteArrayInputStream(patient)));
+	}
+}
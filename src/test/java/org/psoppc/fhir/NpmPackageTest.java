@@ -0,0 +1,154 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.hl7.fhir.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class NpmPackageTest {
+
+	@TempDir
+	Path tmp;
+
+	static final String ADVERSE_EVENT = "StructureDefinition-qicore-adverseevent.json";
+	static final String PATIENT = "StructureDefinition-de-identified-uds-plus-patient.json";
+	static final String ADVERSE_EVENT_URL = "http://hl7.org/fhir/us/qicore/StructureDefinition/qicore-adverseevent";
+	static final String PATIENT_URL = "http://fhir.org/guides/hrsa/uds-plus/StructureDefinition/de-identified-uds-plus-patient";
+
+	static final String INDEX = """
+		{"index-version": 1, "files": [
+		 {"filename": "StructureDefinition-qicore-adverseevent.json", "resourceType": "StructureDefinition", "id": "qicore-adverseevent",
+		  "url": "http://hl7.org/fhir/us/qicore/StructureDefinition/qicore-adverseevent", "version": "6.0.0", "kind": "resource", "type": "AdverseEvent"},
+		 {"filename": "StructureDefinition-de-identified-uds-plus-patient.json", "resourceType": "StructureDefinition", "id": "de-identified-uds-plus-patient",
+		  "url": "http://fhir.org/guides/hrsa/uds-plus/StructureDefinition/de-identified-uds-plus-patient", "version": "1.1.0", "kind": "resource", "type": "Patient"},
+		 {"filename": "ValueSet-race.json", "resourceType": "ValueSet", "id": "race", "url": "http://example.org/ValueSet/race"}
+		]}""";
+
+	/** A package of the bundled JSON profiles, a ValueSet and an example, optionally without its index. */
+	static byte[] tgz(boolean withIndex) throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		entries.put("package/package.json", "{\"name\": \"test.profiles\", \"version\": \"0.1.0\"}".getBytes(StandardCharsets.UTF_8));
+		if (withIndex) {
+			entries.put("package/.index.json", INDEX.getBytes(StandardCharsets.UTF_8));
+		}
+		for (String resource : new String[] {ADVERSE_EVENT, PATIENT}) {
+			try (InputStream in = Inputs.open(resource)) {
+				entries.put("package/" + resource, in.readAllBytes());
+			}
+		}
+		entries.put("package/ValueSet-race.json", "{\"resourceType\": \"ValueSet\", \"id\": \"race\"}".getBytes(StandardCharsets.UTF_8));
+		entries.put("package/example/StructureDefinition-example-" + "x".repeat(100) + ".json",
+			"{\"resourceType\": \"StructureDefinition\", \"id\": \"example\"}".getBytes(StandardCharsets.UTF_8));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				if (name.length > 100) {
+					writeEntry(out, "././@LongLink", 'L', name);
+				}
+				writeEntry(out, entry.getKey(), '0', entry.getValue());
+			}
+			out.write(new byte[1024]);
+		}
+		return bytes.toByteArray();
+	}
+
+	static void writeEntry(GZIPOutputStream out, String name, char type, byte[] data) throws IOException {
+		byte[] header = new byte[512];
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+		put(header, 100, String.format("%07o", 0644));
+		put(header, 108, String.format("%07o", 0));
+		put(header, 116, String.format("%07o", 0));
+		put(header, 124, String.format("%011o", data.length));
+		put(header, 136, String.format("%011o", 0));
+		header[156] = (byte) type;
+		put(header, 257, "ustar");
+		put(header, 263, "00");
+		for (int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		int checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		put(header, 148, String.format("%06o", checksum));
+		out.write(header);
+		out.write(data);
+		out.write(new byte[(512 - data.length % 512) % 512]);
+	}
+
+	static void put(byte[] header, int offset, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	@Test
+	void testIndexesWithoutParsing() throws IOException {
+		NpmPackage npmPackage = NpmPackage.read(new ByteArrayInputStream(tgz(true)));
+		assertEquals("test.profiles", npmPackage.name());
+		assertEquals("0.1.0", npmPackage.version());
+		assertEquals(2, npmPackage.entries().size());
+		assertEquals("AdverseEvent", npmPackage.find(ADVERSE_EVENT_URL).type());
+		assertSame(npmPackage.find(ADVERSE_EVENT_URL), npmPackage.find(ADVERSE_EVENT_URL + "|6.0.0"));
+		assertSame(npmPackage.find(ADVERSE_EVENT_URL), npmPackage.find("qicore-adverseevent"));
+		assertSame(npmPackage.find(PATIENT_URL), npmPackage.find(PATIENT));
+		assertEquals(1, npmPackage.byType("Patient").size());
+		assertEquals(2, npmPackage.byKind("resource").size());
+		assertNull(npmPackage.find("http://example.org/ValueSet/race"));
+		assertNull(npmPackage.find("example"));
+		assertEquals(0, npmPackage.parsed());
+	}
+
+	@Test
+	void testParsesOnDemand() throws IOException {
+		NpmPackage npmPackage = NpmPackage.read(new ByteArrayInputStream(tgz(true)));
+		NpmPackage.Entry entry = npmPackage.find(ADVERSE_EVENT_URL);
+		StructureDefinition profile = npmPackage.structureDefinition(entry);
+		assertEquals(41, profile.getSnapshot().getElement().size());
+		assertEquals(1, npmPackage.parsed());
+	}
+
+	@Test
+	void testIndexesFromFilesWithoutIndex() throws IOException {
+		NpmPackage npmPackage = NpmPackage.read(new ByteArrayInputStream(tgz(false)));
+		assertEquals(2, npmPackage.entries().size());
+		assertEquals("Patient", npmPackage.find(PATIENT_URL).type());
+		assertEquals("1.1.0", npmPackage.find(PATIENT_URL).version());
+		assertEquals(0, npmPackage.parsed());
+	}
+
+	@Test
+	void testProfilesFromPackage() throws CmdLineException, IOException {
+		Path tgz = tmp.resolve("tgz.tgz");
+		Files.write(tgz, tgz(true));
+		String[] packaged = {"--package", tgz.toString(), "-p", ADVERSE_EVENT_URL, "-i", "fhir.ecore", "-o", "out.ecore"};
+		String[] loose = {"-p", ADVERSE_EVENT, "-i", "fhir.ecore", "-o", "out.ecore"};
+		AHRQProfiler fromPackage = AHRQProfilerTest.profiler(packaged);
+		AHRQProfiler fromFile = AHRQProfilerTest.profiler(loose);
+		EPackage spec = fromPackage.loadSpec();
+		EPackage out = fromPackage.profileAll(spec);
+		assertNotNull(out.getEClassifier("AdverseEvent"));
+		assertEquals(AHRQProfilerTest.outline(fromFile.profileAll(spec)), AHRQProfilerTest.outline(out));
+		assertEquals("Patient", fromPackage.typeOfProfile(PATIENT_URL));
+		assertEquals(1, fromPackage.npmPackages().get(0).parsed());
+	}
+}
@@ -0,0 +1,76 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.util.List;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.hl7.fhir.emf.FHIRSerDeser;
+import org.hl7.fhir.emf.Finals;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class PathIndexTest {
+
+	static PathIndex index;
+
+	@BeforeAll
+	static void beforeAll() {
+		InputStream reader = PathIndexTest.class.getClassLoader().getResourceAsStream("fhir.ecore");
+		EPackage spec = (EPackage) FHIRSerDeser.load(reader, Finals.SDS_FORMAT.ECORE);
+		index = new PathIndex(spec);
+	}
+
+	@Test
+	void testResolvesOwnFeature() {
+		PathIndex.Entry entry = index.get("AdverseEvent.actuality");
+		assertNotNull(entry);
+		assertEquals("AdverseEvent", entry.owner().getName());
+		assertEquals("actuality", entry.feature().getName());
+	}
+
+	@Test
+	void testResolvesInheritedFeature() {
+		PathIndex.Entry entry = index.get("AdverseEvent.id");
+		assertNotNull(entry);
+		assertEquals("AdverseEvent", entry.owner().getName());
+		assertEquals("id", entry.feature().getName());
+	}
+
+	@Test
+	void testResolvesNestedBackbonePath() {
+		PathIndex.Entry entry = index.get("AdverseEvent.suspectEntity.causality.assessment");
+		assertNotNull(entry);
+		assertEquals("AdverseEventCausality", entry.owner().getName());
+		assertEquals("assessment", entry.feature().getName());
+
+		PathIndex.Entry suspectEntity = index.get("AdverseEvent.suspectEntity");
+		assertEquals("AdverseEventSuspectEntity", index.backboneType(suspectEntity.feature()).getName());
+		assertNull(index.backboneType(index.get("AdverseEvent.subject").feature()));
+	}
+
+	@Test
+	void testResolvesTypePath() {
+		PathIndex.Entry entry = index.get("AdverseEvent");
+		assertNotNull(entry);
+		assertNull(entry.feature());
+	}
+
+	@Test
+	void testResolvesChoiceVariants() {
+		List<String> variants = index.choice("Patient.deceased[x]").stream().map(e -> e.feature().getName()).sorted().toList();
+		assertEquals(List.of("deceasedBoolean", "deceasedDateTime"), variants);
+		assertTrue(index.choice("AdverseEvent.suspectEntity.causality.assessment[x]").isEmpty());
+		assertTrue(index.choice("Patient.deceased").isEmpty());
+	}
+
+	@Test
+	void testUnknownPath() {
+		assertNull(index.get("AdverseEvent.noSuchElement"));
+		assertNull(index.get("NoSuchResource"));
+	}
+}
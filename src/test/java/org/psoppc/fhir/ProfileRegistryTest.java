@@ -0,0 +1,159 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.hl7.fhir.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class ProfileRegistryTest {
+
+	@TempDir
+	Path tmp;
+
+	static final String ADVERSE_EVENT_URL = "http://hl7.org/fhir/us/qicore/StructureDefinition/qicore-adverseevent";
+
+	static StructureDefinition profile(String url, String version, String base) {
+		return profile(url, version, base, "");
+	}
+
+	/** A minimal AdverseEvent profile; {@code elements} are extra differential elements. */
+	static StructureDefinition profile(String url, String version, String base, String elements) {
+		String json = "{\"resourceType\": \"StructureDefinition\", \"url\": \"" + url + "\""
+			+ (version == null ? "" : ", \"version\": \"" + version + "\"")
+			+ ", \"type\": \"AdverseEvent\", \"baseDefinition\": \"" + base + "\""
+			+ ", \"differential\": {\"element\": [{\"id\": \"AdverseEvent\", \"path\": \"AdverseEvent\"}" + elements + "]}}";
+		try {
+			return new JsonProfileReader().read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Test
+	void testParsesOncePerCanonical() {
+		Map<String, Integer> calls = new HashMap<>();
+		ProfileRegistry registry = new ProfileRegistry(8, url -> {
+			calls.merge(url, 1, Integer::sum);
+			return profile(url, "1.0.0", "http://hl7.org/fhir/StructureDefinition/AdverseEvent");
+		});
+		StructureDefinition first = registry.get("http://example.org/a");
+		assertSame(first, registry.get("http://example.org/a"));
+		assertSame(first, registry.get("http://example.org/a|1.0.0"));
+		assertEquals(1, calls.get("http://example.org/a").intValue());
+		assertEquals(2, registry.hits());
+		assertEquals(1, registry.misses());
+	}
+
+	@Test
+	void testEvictsLeastRecentlyUsed() {
+		Map<String, Integer> calls = new HashMap<>();
+		ProfileRegistry registry = new ProfileRegistry(2, url -> {
+			calls.merge(url, 1, Integer::sum);
+			return profile(url, null, "http://hl7.org/fhir/StructureDefinition/AdverseEvent");
+		});
+		registry.get("http://example.org/a");
+		registry.get("http://example.org/b");
+		registry.get("http://example.org/a");
+		registry.get("http://example.org/c");
+		assertEquals(1, registry.evictions());
+		assertEquals(2, registry.size());
+		registry.get("http://example.org/a");
+		assertEquals(1, calls.get("http://example.org/a").intValue());
+		registry.get("http://example.org/b");
+		assertEquals(2, calls.get("http://example.org/b").intValue());
+	}
+
+	@Test
+	void testResolvesBaseChainOnce() {
+		Map<String, Integer> calls = new HashMap<>();
+		Map<String, StructureDefinition> known = Map.of(
+			"http://example.org/middle", profile("http://example.org/middle", null, "http://example.org/root"),
+			"http://example.org/root", profile("http://example.org/root", null, "http://hl7.org/fhir/StructureDefinition/AdverseEvent"));
+		ProfileRegistry registry = new ProfileRegistry(8, url -> {
+			calls.merge(url, 1, Integer::sum);
+			return known.get(url);
+		});
+		List<StructureDefinition> bases = registry.bases(profile("http://example.org/leaf1", null, "http://example.org/middle"));
+		assertEquals(List.of(known.get("http://example.org/middle"), known.get("http://example.org/root")), bases);
+		assertEquals(bases, registry.bases(profile("http://example.org/leaf2", null, "http://example.org/middle")));
+		assertEquals(1, calls.get("http://example.org/middle").intValue());
+		assertEquals(1, calls.get("http://example.org/root").intValue());
+		assertNull(registry.get("http://example.org/unknown"));
+	}
+
+	@Test
+	void testDifferentialIncludesBases() throws CmdLineException {
+		String[] ss = {"-i", "fhir.ecore", "-o", "out.ecore", "--differential"};
+		AHRQProfiler profiler = AHRQProfilerTest.profiler(ss);
+		EPackage spec = profiler.loadSpec();
+		profiler.loadProfile("StructureDefinition-qicore-adverseevent.json");
+		StructureDefinition derived = profile("http://example.org/derived-adverseevent", null, ADVERSE_EVENT_URL,
+			", {\"id\": \"AdverseEvent.seriousness\", \"path\": \"AdverseEvent.seriousness\", \"min\": 1}"
+			+ ", {\"id\": \"AdverseEvent.event\", \"path\": \"AdverseEvent.event\", \"min\": 0}");
+		EPackage out = profiler.createOutputPackage(spec);
+		profiler.populate(derived, spec, out);
+		EClass adverseEvent = (EClass) out.getEClassifier("AdverseEvent");
+		assertEquals(1, adverseEvent.getEStructuralFeature("seriousness").getLowerBound());
+		assertEquals(1, adverseEvent.getEStructuralFeature("subject").getLowerBound());
+		assertEquals(0, adverseEvent.getEStructuralFeature("event").getLowerBound());
+		assertEquals(1, profiler.registry().hits());
+	}
+
+	@Test
+	void testDerivedElementLayersOverBase() throws CmdLineException {
+		AHRQProfiler profiler = AHRQProfilerTest.profiler("-i", "fhir.ecore", "-o", "out.ecore", "--differential");
+		EPackage spec = profiler.loadSpec();
+		profiler.registry().put(profile("http://example.org/base", null, "http://hl7.org/fhir/StructureDefinition/AdverseEvent",
+			", {\"id\": \"AdverseEvent.seriousness\", \"path\": \"AdverseEvent.seriousness\", \"short\": \"Base\", \"min\": 1, \"mustSupport\": true}"));
+		StructureDefinition derived = profile("http://example.org/derived", null, "http://example.org/base",
+			", {\"id\": \"AdverseEvent.seriousness\", \"path\": \"AdverseEvent.seriousness\", \"short\": \"Derived\"}");
+		EPackage out = profiler.createOutputPackage(spec);
+		profiler.populate(derived, spec, out);
+		EStructuralFeature seriousness = ((EClass) out.getEClassifier("AdverseEvent")).getEStructuralFeature("seriousness");
+		assertEquals(1, seriousness.getLowerBound());
+		assertEquals("true", seriousness.getEAnnotation(AHRQProfiler.HL7_FHIR_URL).getDetails().get("mustSupport"));
+		assertEquals("Derived", EcoreUtil.getDocumentation(seriousness));
+	}
+
+	@Test
+	void testDerivedBeforeLooseFileBase() throws CmdLineException, IOException {
+		Path base = tmp.resolve("base.json");
+		Path derived = tmp.resolve("derived.json");
+		Files.writeString(base, BuildManifestTest.adverseEvent("http://example.org/base", SnapshotGeneratorTest.CORE_URL, "\"min\": 1"));
+		Files.writeString(derived, BuildManifestTest.adverseEvent("http://example.org/derived", "http://example.org/base", "\"short\": \"Derived\""));
+		String[] args = {"-p", derived.toString(), "-p", base.toString(), "-i", "fhir.ecore", "--differential", "-t", "2", "--registry-size", "1",
+			"--build-cache", tmp.resolve("cache").toString()};
+
+		AHRQProfiler first = AHRQProfilerTest.profiler(args);
+		EPackage out = first.profileAll(first.loadSpec());
+		EStructuralFeature seriousness = ((EClass) out.getEClassifier("AdverseEvent")).getEStructuralFeature("seriousness");
+		assertEquals(1, seriousness.getLowerBound());
+		assertEquals("Derived", EcoreUtil.getDocumentation(seriousness));
+		String hash = new BuildManifest(tmp.resolve("cache"), SpecCache.hash(Inputs.read("fhir.ecore")), first.configuration()).hash(derived.toString());
+
+		Files.writeString(base, BuildManifestTest.adverseEvent("http://example.org/base", SnapshotGeneratorTest.CORE_URL, "\"min\": 0"));
+		AHRQProfiler second = AHRQProfilerTest.profiler(args);
+		out = second.profileAll(second.loadSpec());
+		assertEquals(0, ((EClass) out.getEClassifier("AdverseEvent")).getEStructuralFeature("seriousness").getLowerBound());
+		assertNotEquals(hash, new BuildManifest(tmp.resolve("cache"), SpecCache.hash(Inputs.read("fhir.ecore")), second.configuration()).hash(derived.toString()));
+	}
+}
@@ -0,0 +1,54 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.hl7.fhir.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class ProfilerEventsTest {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	void testPopulateEcoreOutEmitsEvents() throws CmdLineException, IOException {
+		AHRQProfiler sut = AHRQProfilerTest.profiler(new String[] {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore"});
+		Path file = tmp.resolve("file.jfr");
+		StructureDefinition profile;
+		try (Recording recording = new Recording()) {
+			recording.enable(ProfilerEvents.ElementEvent.class);
+			recording.enable(ProfilerEvents.CopyFeatureEvent.class);
+			recording.enable(ProfilerEvents.SerDeserEvent.class);
+			recording.start();
+			EPackage spec = sut.loadSpec();
+			profile = sut.loadProfile();
+			sut.populateEcoreOut(profile.getSnapshot(), spec, sut.createOutputPackage(spec));
+			recording.stop();
+			recording.dump(file);
+		}
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+		Files.delete(file);
+
+		long elements = events.stream().filter(e -> e.getEventType().getName().equals("org.psoppc.fhir.Element")).count();
+		assertEquals(profile.getSnapshot().getElement().size() - 1, elements);
+		assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("org.psoppc.fhir.CopyFeature")
+			&& "AdverseEvent.suspectEntity.causality.assessment".equals(e.getString("path"))
+			&& "AdverseEventCausality".equals(e.getString("classifier"))));
+		assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("org.psoppc.fhir.SerDeser")
+			&& "load".equals(e.getString("operation"))
+			&& "AdverseEvent".equals(e.getString("classifier"))));
+	}
+}
@@ -0,0 +1,125 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class ProfilerServerTest {
+
+	@TempDir
+	Path tmp;
+
+	static AHRQProfiler profiler;
+	static ProfilerServer server;
+
+	@BeforeAll
+	static void beforeAll() throws CmdLineException {
+		String[] ss = {"-i", "fhir.ecore"};
+		profiler = AHRQProfilerTest.profiler(ss);
+		server = new ProfilerServer(profiler, profiler.loadSpec());
+	}
+
+	static String session(String requests) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		server.serve(new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)), out);
+		return out.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void testAnswersEachJob() throws IOException {
+		String reply = session("StructureDefinition-qicore-adverseevent.xml\n\nStructureDefinition-de-identified-uds-plus-patient.xml\nQUIT\nignored.xml\n");
+
+		int headerEnd = reply.indexOf('\n');
+		String header = reply.substring(0, headerEnd);
+		assertTrue(header.startsWith("OK "), header);
+		int length = Integer.parseInt(header.split(" ")[1]);
+		byte[] rest = reply.substring(headerEnd + 1).getBytes(StandardCharsets.UTF_8);
+		String first = new String(rest, 0, length, StandardCharsets.UTF_8);
+		assertTrue(first.contains("name=\"AdverseEvent\""));
+
+		String second = new String(rest, length, rest.length - length, StandardCharsets.UTF_8);
+		assertTrue(second.startsWith("OK "), second);
+		assertTrue(second.contains("name=\"Patient\""));
+
+		// Nothing is answered after QUIT
+		int secondHeaderEnd = second.indexOf('\n');
+		int secondLength = Integer.parseInt(second.substring(0, secondHeaderEnd).split(" ")[1]);
+		assertEquals(secondLength, second.substring(secondHeaderEnd + 1).getBytes(StandardCharsets.UTF_8).length);
+	}
+
+	@Test
+	void testCountsIssuesPerJob() throws IOException {
+		String[] first = session("StructureDefinition-de-identified-uds-plus-patient.xml\n").split("\n", 2)[0].split(" ");
+		String[] second = session("StructureDefinition-de-identified-uds-plus-patient.xml\n").split("\n", 2)[0].split(" ");
+		assertEquals(3, first.length);
+		assertTrue(Long.parseLong(first[2]) > 0, first[2]);
+		assertEquals(first[2], second[2]);
+		assertEquals(0, profiler.diagnostics().total());
+	}
+
+	@Test
+	void testReportsFailedJob() throws IOException {
+		String reply = session("no-such-profile.xml\n");
+		assertTrue(reply.startsWith("ERR "), reply);
+		assertEquals(1, reply.split("\\n").length);
+	}
+
+	/** The body of the first reply to {@code request}. */
+	static byte[] body(ProfilerServer server, String request) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		server.serve(new ByteArrayInputStream((request + "\n").getBytes(StandardCharsets.UTF_8)), out);
+		byte[] reply = out.toByteArray();
+		int headerEnd = 0;
+		while (reply[headerEnd] != '\n') {
+			headerEnd++;
+		}
+		String header = new String(reply, 0, headerEnd, StandardCharsets.UTF_8);
+		assertTrue(header.startsWith("OK "), header);
+		int length = Integer.parseInt(header.split(" ")[1]);
+		return Arrays.copyOfRange(reply, headerEnd + 1, headerEnd + 1 + length);
+	}
+
+	@Test
+	void testHonorsGzipAndCanonical() throws CmdLineException, IOException {
+		AHRQProfiler options = AHRQProfilerTest.profiler("-i", "fhir.ecore", "--gzip", "--canonical");
+		ProfilerServer zipped = new ProfilerServer(options, options.loadSpec());
+		byte[] body = body(zipped, "StructureDefinition-qicore-adverseevent.xml");
+		String ecore;
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+			ecore = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		assertTrue(ecore.contains(CanonicalEcore.CANONICAL_URL));
+		assertFalse(ecore.contains("\r\n"));
+	}
+
+	@Test
+	void testRereadsEditedBaseEachJob() throws CmdLineException, IOException {
+		Path base = tmp.resolve("base.json");
+		Path derived = tmp.resolve("derived.json");
+		Files.writeString(base, BuildManifestTest.adverseEvent("http://example.org/base", SnapshotGeneratorTest.CORE_URL, "\"short\": \"Base one\""));
+		Files.writeString(derived, BuildManifestTest.adverseEvent("http://example.org/derived", "http://example.org/base", "\"min\": 1"));
+		AHRQProfiler differential = AHRQProfilerTest.profiler("-i", "fhir.ecore", "--differential");
+		ProfilerServer sut = new ProfilerServer(differential, differential.loadSpec());
+		String request = derived + " " + base;
+		assertTrue(new String(body(sut, request), StandardCharsets.UTF_8).contains("Base one"));
+
+		Files.writeString(base, BuildManifestTest.adverseEvent("http://example.org/base", SnapshotGeneratorTest.CORE_URL, "\"short\": \"Base two\""));
+		String second = new String(body(sut, request), StandardCharsets.UTF_8);
+		assertTrue(second.contains("Base two"));
+		assertFalse(second.contains("Base one"));
+	}
+}
@@ -0,0 +1,96 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.emf.ecore.EAnnotation;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class ReferenceSubstitutionTest {
+
+	@TempDir
+	Path tmp;
+
+	static final String QICORE_PATIENT = "http://hl7.org/fhir/us/qicore/StructureDefinition/qicore-patient";
+	static final String UDS_PLUS_PATIENT = "http://fhir.org/guides/hrsa/uds-plus/StructureDefinition/de-identified-uds-plus-patient";
+
+	@Test
+	void testSubjectPointsAtDeidentifiedPatient() throws CmdLineException, IOException {
+		Path table = tmp.resolve("table.txt");
+		Files.writeString(table, "# AHRQ accepts only de-identified patients\n"
+			+ QICORE_PATIENT + " StructureDefinition-de-identified-uds-plus-patient.xml\n"
+			+ "Group http://example.org/StructureDefinition/ahrq-group\n");
+		String[] args = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-p", "StructureDefinition-de-identified-uds-plus-patient.xml",
+			"-i", "fhir.ecore", "--substitutions", table.toString()};
+		AHRQProfiler sut = AHRQProfilerTest.profiler(args);
+		EPackage spec = sut.loadSpec();
+		EPackage out = sut.profileAll(spec);
+
+		EClass adverseEvent = (EClass) out.getEClassifier("AdverseEvent");
+		EStructuralFeature subject = adverseEvent.getEStructuralFeature("subject");
+		String targets = subject.getEAnnotation(AHRQProfiler.HL7_FHIR_URL).getDetails().get(ReferenceSubstitution.TARGET_PROFILE_KEY);
+		assertTrue(targets.startsWith(UDS_PLUS_PATIENT + " "), targets);
+		assertTrue(targets.contains("http://example.org/StructureDefinition/ahrq-group"), targets);
+		assertTrue(!targets.contains(QICORE_PATIENT), targets);
+
+		EAnnotation substitution = subject.getEAnnotation(ReferenceSubstitution.TARGET_PROFILE_URL);
+		assertEquals(UDS_PLUS_PATIENT, substitution.getDetails().get(QICORE_PATIENT));
+		assertSame(out.getEClassifier("Patient"), substitution.getReferences().get(0));
+		Files.delete(table);
+	}
+
+	@Test
+	void testPackageFileNameReplacementGivesItsUrl() throws CmdLineException, IOException {
+		Path tgz = tmp.resolve("tgz.tgz");
+		Files.write(tgz, NpmPackageTest.tgz(true));
+		Path table = tmp.resolve("table.txt");
+		Files.writeString(table, QICORE_PATIENT + " " + NpmPackageTest.PATIENT + "\n");
+		String[] args = {"--package", tgz.toString(), "-p", NpmPackageTest.ADVERSE_EVENT_URL, "-p", NpmPackageTest.PATIENT,
+			"-i", "fhir.ecore", "--substitutions", table.toString()};
+		AHRQProfiler sut = AHRQProfilerTest.profiler(args);
+		EPackage out = sut.profileAll(sut.loadSpec());
+
+		EStructuralFeature subject = ((EClass) out.getEClassifier("AdverseEvent")).getEStructuralFeature("subject");
+		String targets = subject.getEAnnotation(AHRQProfiler.HL7_FHIR_URL).getDetails().get(ReferenceSubstitution.TARGET_PROFILE_KEY);
+		assertTrue(targets.startsWith(UDS_PLUS_PATIENT + " "), targets);
+		assertTrue(!targets.contains(NpmPackageTest.PATIENT), targets);
+		assertEquals(UDS_PLUS_PATIENT, subject.getEAnnotation(ReferenceSubstitution.TARGET_PROFILE_URL).getDetails().get(QICORE_PATIENT));
+	}
+
+	@Test
+	void testResolvesEachTargetOnce() throws CmdLineException {
+		AHRQProfiler sut = AHRQProfilerTest.profiler(new String[] {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore"});
+		EPackage spec = sut.loadSpec();
+		EPackage out = sut.profileAll(spec);
+		ReferenceSubstitution substitution = new ReferenceSubstitution(Map.of(QICORE_PATIENT, UDS_PLUS_PATIENT), url -> null,
+			name -> { throw new AssertionError("canonical replacements are not loaded"); });
+
+		List<String> named = out.getEClassifiers().stream()
+			.flatMap(c -> ((EClass) c).getEStructuralFeatures().stream())
+			.map(f -> f.getEAnnotation(AHRQProfiler.HL7_FHIR_URL))
+			.filter(a -> a != null && a.getDetails().containsKey(ReferenceSubstitution.TARGET_PROFILE_KEY))
+			.flatMap(a -> Arrays.stream(a.getDetails().get(ReferenceSubstitution.TARGET_PROFILE_KEY).split(" ")))
+			.toList();
+
+		int retargeted = substitution.apply(out, spec);
+		assertTrue(retargeted >= 2, "subject and recorder name qicore-patient");
+		assertTrue(named.size() > new HashSet<>(named).size());
+		assertEquals(new HashSet<>(named).size(), substitution.resolutions());
+		assertNull(substitution.resolve("http://example.org/unmapped", out, spec).orElse(null));
+	}
+}
@@ -0,0 +1,44 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class RunReportTest {
+
+	@SuppressWarnings("unchecked")
+	static List<Map<String, Object>> phases(RunReport report) {
+		return (List<Map<String, Object>>) report.toMap().get("phases");
+	}
+
+	@Test
+	void testAccumulatesPhases() {
+		RunReport report = RunReport.create();
+		for (int i = 0; i < 3; i++) {
+			int n = i;
+			report.time("applyElement", () -> new StringBuilder().append(n));
+		}
+		report.sampleHeap("applyElement");
+
+		List<Map<String, Object>> phases = phases(report);
+		assertEquals(1, phases.size());
+		Map<String, Object> phase = phases.get(0);
+		assertEquals("applyElement", phase.get("name"));
+		assertEquals(3L, phase.get("count"));
+		assertTrue((Long) phase.get("wallNanos") >= 0);
+		assertTrue(phase.containsKey("retainedHeapBytes"));
+	}
+
+	@Test
+	void testNoneRecordsNothing() {
+		RunReport.NONE.time("loadSpec", () -> RunReport.NONE.sampleHeap("loadSpec"));
+		assertEquals("spec", RunReport.NONE.time("loadSpec", () -> "spec"));
+		assertFalse(RunReport.NONE.isEnabled());
+		assertTrue(phases(RunReport.NONE).isEmpty());
+	}
+}
@@ -0,0 +1,91 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.eclipse.emf.ecore.EAnnotation;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.hl7.fhir.ElementDefinition;
+import org.hl7.fhir.StructureDefinition;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.kohsuke.args4j.CmdLineException;
+
+public class SliceEngineTest {
+
+	static final String RACE = "http://fhir.org/guides/hrsa/uds-plus/StructureDefinition/uds-plus-race-extension";
+
+	static AHRQProfiler sut;
+	static StructureDefinition profile;
+	static EPackage out;
+
+	@BeforeAll
+	static void beforeAll() throws CmdLineException {
+		sut = AHRQProfilerTest.profiler(new String[] {"-p", "StructureDefinition-de-identified-uds-plus-patient.xml", "-i", "fhir.ecore"});
+		EPackage spec = sut.loadSpec();
+		profile = sut.loadProfile();
+		out = sut.createOutputPackage(spec);
+		sut.populateEcoreOut(profile.getSnapshot(), spec, out);
+	}
+
+	@Test
+	void testSlicesBecomeFeatures() {
+		EClass patient = (EClass) out.getEClassifier("Patient");
+		EStructuralFeature race = patient.getEStructuralFeature("extension_uds_plus_race");
+		assertNotNull(race);
+		assertEquals(1, race.getLowerBound());
+		assertEquals(1, race.getUpperBound());
+		assertEquals("Extension", race.getEType().getName());
+
+		EAnnotation slice = race.getEAnnotation(SliceEngine.SLICE_URL);
+		assertEquals("uds-plus-race", slice.getDetails().get("sliceName"));
+		assertEquals("extension", slice.getDetails().get("slicedFeature"));
+		assertEquals("value:url=" + RACE, slice.getDetails().get("discriminator:0"));
+
+		EStructuralFeature extension = patient.getEStructuralFeature("extension");
+		long slicings = extension.getEAnnotations().stream().filter(a -> "http://hl7.org/fhir/slicing".equals(a.getSource())).count();
+		assertEquals(1, slicings);
+		assertEquals(4, extension.getLowerBound());
+	}
+
+	@Test
+	void testSliceForDiscriminatorValue() {
+		SliceEngine slices = new SliceEngine(profile.getSnapshot().getElement());
+		profile.getSnapshot().getElement().stream()
+			.filter(e -> e.getSliceName() != null)
+			.forEach(slices::values);
+		SliceEngine.Discriminator url = new SliceEngine.Discriminator("value", "url");
+		assertEquals("uds-plus-race", slices.sliceFor("Patient.extension", url, RACE));
+		assertNull(slices.sliceFor("Patient.extension", url, "http://example.org/unknown"));
+		assertNull(slices.sliceFor("Patient.identifier", url, RACE));
+	}
+
+	@Test
+	void testReportsSliceWithAnotherSlicesValue() {
+		Diagnostics diagnostics = new Diagnostics();
+		SliceEngine slices = new SliceEngine(profile.getSnapshot().getElement(), diagnostics);
+		List<ElementDefinition> named = profile.getSnapshot().getElement().stream().filter(e -> e.getSliceName() != null).toList();
+		named.forEach(slices::values);
+		named.forEach(slices::values);
+		assertEquals(0, diagnostics.count(Diagnostics.Category.DUPLICATE_SLICE));
+
+		ElementDefinition race = named.stream().filter(e -> "uds-plus-race".equals(e.getSliceName().getValue())).findFirst().orElseThrow();
+		ElementDefinition again = EcoreUtil.copy(race);
+		again.setId("Patient.extension:race-again");
+		again.getSliceName().setValue("race-again");
+		slices.values(again);
+		assertEquals(1, diagnostics.count(Diagnostics.Category.DUPLICATE_SLICE));
+		assertEquals("uds-plus-race", slices.sliceFor("Patient.extension", new SliceEngine.Discriminator("value", "url"), RACE));
+	}
+
+	@Test
+	void testFeatureName() {
+		assertEquals("extension_uds_plus_race", SliceEngine.featureName("extension", "uds-plus-race"));
+	}
+}
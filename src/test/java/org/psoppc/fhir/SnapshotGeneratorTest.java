@@ -0,0 +1,132 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.hl7.fhir.ElementDefinition;
+import org.hl7.fhir.StructureDefinition;
+import org.hl7.fhir.StructureDefinitionSnapshot;
+import org.junit.jupiter.api.Test;
+import org.kohsuke.args4j.CmdLineException;
+
+public class SnapshotGeneratorTest {
+
+	static final String BASE_URL = "http://example.org/StructureDefinition/base-adverseevent";
+	static final String CORE_URL = "http://hl7.org/fhir/StructureDefinition/AdverseEvent";
+
+	static List<String> ids(StructureDefinitionSnapshot snapshot) {
+		List<String> ids = new ArrayList<>();
+		for (ElementDefinition elem : snapshot.getElement()) {
+			ids.add(elem.getId());
+		}
+		return ids;
+	}
+
+	static ElementDefinition element(StructureDefinitionSnapshot snapshot, String id) {
+		for (ElementDefinition elem : snapshot.getElement()) {
+			if (id.equals(elem.getId())) {
+				return elem;
+			}
+		}
+		return null;
+	}
+
+	/** Generating the bundled profiles' snapshots from their differentials reproduces them. */
+	void assertMatchesBundled(String profileName) throws CmdLineException {
+		AHRQProfiler profiler = AHRQProfilerTest.profiler(new String[] {"-p", profileName, "-i", "fhir.ecore", "-o", "out.ecore"});
+		EPackage spec = profiler.loadSpec();
+		StructureDefinition profile = profiler.loadProfile();
+		StructureDefinitionSnapshot generated = profiler.snapshotGenerator(spec).generate(profile);
+		assertNotNull(generated);
+		assertEquals(ids(profile.getSnapshot()), ids(generated));
+
+		EPackage expected = profiler.createOutputPackage(spec);
+		profiler.populateEcoreOut(profile.getSnapshot(), spec, expected);
+		profile.setSnapshot(null);
+		EPackage out = profiler.createOutputPackage(spec);
+		profiler.populate(profile, spec, out);
+		assertEquals(AHRQProfilerTest.constrained(expected), AHRQProfilerTest.constrained(out));
+	}
+
+	@Test
+	void testAdverseEventMatchesBundled() throws CmdLineException {
+		assertMatchesBundled("StructureDefinition-qicore-adverseevent.xml");
+	}
+
+	@Test
+	void testPatientMatchesBundled() throws CmdLineException {
+		assertMatchesBundled("StructureDefinition-de-identified-uds-plus-patient.json");
+	}
+
+	@Test
+	void testSlicesAndUnfoldsDatatypes() throws CmdLineException {
+		AHRQProfiler profiler = AHRQProfilerTest.profiler(new String[] {"-p", "StructureDefinition-de-identified-uds-plus-patient.json", "-i", "fhir.ecore", "-o", "out.ecore"});
+		StructureDefinitionSnapshot generated = profiler.snapshotGenerator(profiler.loadSpec()).generate(profiler.loadProfile());
+		assertEquals("4", element(generated, "Patient.extension").getMin().getValue().toString());
+		assertEquals("value", element(generated, "Patient.extension").getSlicing().getDiscriminator().get(0).getType().getValue().getLiteral());
+		assertEquals("uds-plus-race", element(generated, "Patient.extension:uds-plus-race").getSliceName().getValue());
+		assertEquals(SnapshotGenerator.SYSTEM_STRING, element(generated, "Patient.address.postalCode.value").getType().get(0).getCode().getValue());
+		ElementDefinition value = element(generated, "Patient.address.postalCode.extension:dataAbsentReason.value[x]");
+		assertEquals("Patient.address.postalCode.extension.value[x]", value.getPath().getValue());
+		assertEquals("1", value.getMin().getValue().toString());
+		assertEquals(List.of("dateTime", "boolean"), element(generated, "Patient.deceased[x]").getType().stream().map(t -> t.getCode().getValue()).toList());
+	}
+
+	@Test
+	void testExpandsSharedBaseOnce() throws CmdLineException {
+		Map<String, Integer> calls = new HashMap<>();
+		ProfileRegistry registry = new ProfileRegistry(8, url -> {
+			calls.merge(url, 1, Integer::sum);
+			return BASE_URL.equals(url) ? ProfileRegistryTest.profile(BASE_URL, null, CORE_URL,
+				", {\"id\": \"AdverseEvent.seriousness\", \"path\": \"AdverseEvent.seriousness\", \"min\": 1}") : null;
+		});
+		AHRQProfiler profiler = AHRQProfilerTest.profiler(new String[] {"-i", "fhir.ecore", "-o", "out.ecore"});
+		SnapshotGenerator generator = new SnapshotGenerator(profiler.pathIndex(profiler.loadSpec()), registry);
+		for (int i = 0; i < 30; i++) {
+			StructureDefinition profile = ProfileRegistryTest.profile("http://example.org/derived-" + i, null, BASE_URL,
+				", {\"id\": \"AdverseEvent.outcome\", \"path\": \"AdverseEvent.outcome\", \"min\": 1}");
+			StructureDefinitionSnapshot snapshot = generator.generate(profile);
+			assertEquals("1", element(snapshot, "AdverseEvent.seriousness").getMin().getValue().toString());
+			assertEquals("1", element(snapshot, "AdverseEvent.outcome").getMin().getValue().toString());
+		}
+		assertEquals(2, generator.expansions());
+		assertEquals(1, calls.get(BASE_URL).intValue());
+		assertEquals("0", element(generator.generate(ProfileRegistryTest.profile("http://example.org/other", null, CORE_URL)),
+			"AdverseEvent.outcome").getMin().getValue().toString());
+	}
+
+	@Test
+	void testSliceOfBackboneCopiesItsChildren() throws CmdLineException {
+		AHRQProfiler profiler = AHRQProfilerTest.profiler(new String[] {"-i", "fhir.ecore", "-o", "out.ecore"});
+		SnapshotGenerator generator = new SnapshotGenerator(profiler.pathIndex(profiler.loadSpec()), new ProfileRegistry(8, url -> null));
+		StructureDefinition profile = ProfileRegistryTest.profile("http://example.org/drug-adverseevent", null, CORE_URL,
+			", {\"id\": \"AdverseEvent.suspectEntity\", \"path\": \"AdverseEvent.suspectEntity\", \"slicing\": {\"rules\": \"open\"}}"
+			+ ", {\"id\": \"AdverseEvent.suspectEntity:drug\", \"path\": \"AdverseEvent.suspectEntity\", \"sliceName\": \"drug\", \"min\": 1}"
+			+ ", {\"id\": \"AdverseEvent.suspectEntity:drug.instance\", \"path\": \"AdverseEvent.suspectEntity.instance\", \"short\": \"The drug\"}");
+		StructureDefinitionSnapshot snapshot = generator.generate(profile);
+		ElementDefinition instance = element(snapshot, "AdverseEvent.suspectEntity:drug.instance");
+		assertNotNull(instance);
+		assertEquals("The drug", instance.getShort().getValue());
+		assertEquals("AdverseEvent.suspectEntity.instance", instance.getPath().getValue());
+		assertNotNull(element(snapshot, "AdverseEvent.suspectEntity:drug.causality"));
+		ElementDefinition unsliced = element(snapshot, "AdverseEvent.suspectEntity.instance");
+		assertTrue(unsliced.getShort() == null || !"The drug".equals(unsliced.getShort().getValue()));
+		List<String> ids = ids(snapshot);
+		assertEquals(ids.indexOf("AdverseEvent.suspectEntity:drug") + 1, ids.indexOf("AdverseEvent.suspectEntity:drug.id"));
+	}
+
+	@Test
+	void testUnresolvedBase() throws CmdLineException {
+		AHRQProfiler profiler = AHRQProfilerTest.profiler(new String[] {"-i", "fhir.ecore", "-o", "out.ecore"});
+		SnapshotGenerator generator = new SnapshotGenerator(profiler.pathIndex(profiler.loadSpec()), new ProfileRegistry(8, url -> null));
+		assertNull(generator.generate(ProfileRegistryTest.profile("http://example.org/orphan", null, "http://example.org/missing")));
+	}
+}
@@ -0,0 +1,70 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class SpecCacheTest {
+
+	static byte[] source;
+
+	@TempDir
+	Path tmp;
+
+	@BeforeAll
+	static void beforeAll() throws IOException {
+		try (InputStream in = SpecCacheTest.class.getClassLoader().getResourceAsStream("fhir.ecore")) {
+			source = in.readAllBytes();
+		}
+	}
+
+	@Test
+	void testLoadWritesThenReadsEntry() throws IOException {
+		Path dir = tmp.resolve("spec-cache");
+		SpecCache cache = new SpecCache(dir);
+
+		EPackage parsed = cache.load(source);
+		assertNotNull(parsed);
+		Path entry = dir.resolve(SpecCache.hash(source) + SpecCache.CACHE_EXTENSION);
+		assertTrue(Files.isRegularFile(entry));
+
+		EPackage cached = cache.load(source);
+		assertEquals(parsed.getEClassifiers().size(), cached.getEClassifiers().size());
+		assertEquals(parsed.getNsURI(), cached.getNsURI());
+		EClass adverseEvent = (EClass) cached.getEClassifier("AdverseEvent");
+		assertNotNull(adverseEvent.getEStructuralFeature("suspectEntity"));
+	}
+
+	@Test
+	void testHashChangesWithContent() {
+		byte[] changed = source.clone();
+		changed[changed.length - 1] ^= 1;
+		assertNotEquals(SpecCache.hash(source), SpecCache.hash(changed));
+	}
+
+	/** A spec parsed on a cache miss is referred to by nsURI, as one read from the cache is. */
+	@Test
+	void testColdAndWarmCacheGiveEqualOutput() throws CmdLineException, IOException {
+		String[] args = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-i", "fhir.ecore", "--spec-cache", tmp.resolve("spec-cache").toString()};
+		AHRQProfiler cold = new AHRQProfiler(args);
+		EcoreWriter.write(cold.profileAll(cold.loadSpec()), tmp.resolve("cold.ecore"), false);
+		AHRQProfiler warm = new AHRQProfiler(args);
+		EcoreWriter.write(warm.profileAll(warm.loadSpec()), tmp.resolve("warm.ecore"), false);
+		assertArrayEquals(Files.readAllBytes(tmp.resolve("cold.ecore")), Files.readAllBytes(tmp.resolve("warm.ecore")));
+		assertTrue(Files.readString(tmp.resolve("cold.ecore")).contains("ecore:EClass http://hl7.org/fhir#//"));
+	}
+}
@@ -0,0 +1,81 @@
+package org.psoppc.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.eclipse.emf.ecore.EPackage;
+import org.hl7.fhir.ElementDefinition;
+import org.hl7.fhir.StructureDefinition;
+import org.hl7.fhir.emf.FHIRSerDeser;
+import org.hl7.fhir.emf.Finals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kohsuke.args4j.CmdLineException;
+
+public class XmlProfileReaderTest {
+
+	@TempDir
+	Path tmp;
+
+	static final String PATIENT = "StructureDefinition-de-identified-uds-plus-patient.xml";
+
+	@Test
+	void testReadsOnlyTheProjection() throws IOException {
+		StructureDefinition full;
+		StructureDefinition projected;
+		try (InputStream in = Inputs.open(PATIENT)) {
+			full = (StructureDefinition) FHIRSerDeser.load(in, Finals.SDS_FORMAT.XML);
+		}
+		try (InputStream in = Inputs.open(PATIENT)) {
+			projected = new XmlProfileReader().read(in);
+		}
+		assertEquals(full.getUrl().getValue(), projected.getUrl().getValue());
+		assertEquals(full.getSnapshot().getElement().size(), projected.getSnapshot().getElement().size());
+		assertEquals(full.getDifferential().getElement().size(), projected.getDifferential().getElement().size());
+		assertNotNull(full.getText());
+		assertNull(projected.getText());
+		for (int i = 0; i < full.getSnapshot().getElement().size(); i++) {
+			ElementDefinition expected = full.getSnapshot().getElement().get(i);
+			ElementDefinition actual = projected.getSnapshot().getElement().get(i);
+			assertEquals(expected.getId(), actual.getId());
+			assertEquals(expected.getPath().getValue(), actual.getPath().getValue());
+			assertEquals(expected.getMin().getValue(), actual.getMin().getValue());
+			assertEquals(expected.getMax().getValue(), actual.getMax().getValue());
+			assertEquals(expected.getType().size(), actual.getType().size());
+			assertTrue(actual.getConstraint().isEmpty());
+			assertTrue(actual.getMapping().isEmpty());
+			assertNull(actual.getComment());
+		}
+		assertFalse(full.getSnapshot().getElement().get(0).getConstraint().isEmpty());
+	}
+
+	@Test
+	void testProjectionProfilesLikeFullParse() throws CmdLineException, IOException {
+		String[] projected = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-p", PATIENT, "-i", "fhir.ecore", "-o", "out.ecore"};
+		String[] full = {"-p", "StructureDefinition-qicore-adverseevent.xml", "-p", PATIENT, "-i", "fhir.ecore", "-o", "out.ecore", "--full-parse"};
+		AHRQProfiler fromProjection = AHRQProfilerTest.profiler(projected);
+		AHRQProfiler fromFull = AHRQProfilerTest.profiler(full);
+		EPackage spec = fromProjection.loadSpec();
+		EcoreWriter.write(fromProjection.profileAll(spec), tmp.resolve("projected.ecore"), false, true);
+		EcoreWriter.write(fromFull.profileAll(spec), tmp.resolve("full.ecore"), false, true);
+		assertArrayEquals(Files.readAllBytes(tmp.resolve("full.ecore")), Files.readAllBytes(tmp.resolve("projected.ecore")));
+	}
+
+	@Test
+	void testRejectsOtherResources() {
+		byte[] patient = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"x\"/></Patient>".getBytes(StandardCharsets.UTF_8);
+		assertThrows(IOException.class, () -> new XmlProfileReader().read(new ByteArrayInputStream(patient)));
+	}
+}